@@ -2,15 +2,53 @@ package fr.dechriste.iot.airboatcontroller;
 
 import android.app.Application;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+
+import fr.dechriste.iot.airboatcontroller.control.Clock;
+import fr.dechriste.iot.airboatcontroller.control.EventLog;
 import timber.log.Timber;
 
 public class AirboatControllerApp extends Application {
+    private static final int EVENT_LOG_CAPACITY = 4096;
+
+    private static final EventLog sEventLog = new EventLog(Clock.SYSTEM, EVENT_LOG_CAPACITY);
+    private static long sStartNanos;
+
+    public static EventLog getEventLog() {
+        return sEventLog;
+    }
+
+    /** When the process started, to measure the time from a cold start to the first control frame. */
+    public static long getStartNanos() {
+        return sStartNanos;
+    }
 
     @Override public void onCreate() {
+        sStartNanos = System.nanoTime();
         super.onCreate();
 
         if (BuildConfig.DEBUG) {
             Timber.plant(new Timber.DebugTree());
         }
+        BleUtils.configureLogging(this);
+        installCrashDump();
+    }
+
+    // Keeps the events leading to a crash, the default handler still reports it afterwards.
+    private void installCrashDump() {
+        Thread.UncaughtExceptionHandler defaultHandler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler((thread, throwable) -> {
+            File file = new File(getExternalFilesDir(null), "crash-events-" + System.currentTimeMillis() + ".txt");
+            try (Writer writer = new FileWriter(file)) {
+                sEventLog.dump(writer);
+            } catch (Exception e) {
+                Timber.e(e, "Unable to dump the event log");
+            }
+            if (defaultHandler != null) {
+                defaultHandler.uncaughtException(thread, throwable);
+            }
+        });
     }
 }
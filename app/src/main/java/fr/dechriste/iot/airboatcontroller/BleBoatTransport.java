@@ -0,0 +1,60 @@
+package fr.dechriste.iot.airboatcontroller;
+
+import android.bluetooth.BluetoothGatt;
+
+import com.polidea.rxandroidble2.RxBleDevice;
+
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import fr.dechriste.iot.airboatcontroller.control.TransportMode;
+import fr.dechriste.iot.airboatcontroller.transport.BoatLink;
+import fr.dechriste.iot.airboatcontroller.transport.BoatTransport;
+import fr.dechriste.iot.airboatcontroller.transport.LinkState;
+import io.reactivex.Observable;
+import timber.log.Timber;
+
+/**
+ * Reaches a boat through its JDY-08 BLE module.
+ */
+public class BleBoatTransport implements BoatTransport {
+    private final RxBleDevice mBleDevice;
+
+    public BleBoatTransport(@NonNull RxBleDevice bleDevice) {
+        mBleDevice = bleDevice;
+    }
+
+    @Override
+    public String getAddress() {
+        return mBleDevice.getMacAddress();
+    }
+
+    @Override
+    public Observable<BoatLink> connect(TransportMode requestedMode) {
+        return mBleDevice.establishConnection(false)
+                .flatMapSingle(rxBleConnection -> rxBleConnection
+                        .requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH, 1, TimeUnit.MILLISECONDS)
+                        .doOnError(throwable -> Timber.w(throwable, "Unable to request a high connection priority"))
+                        .onErrorComplete()
+                        .andThen(BleCommandWriter.create(rxBleConnection, requestedMode)));
+    }
+
+    @Override
+    public Observable<LinkState> observeLinkState() {
+        return mBleDevice.observeConnectionStateChanges()
+                .startWith(mBleDevice.getConnectionState())
+                .map(state -> {
+                    switch (state) {
+                        case CONNECTING:
+                            return LinkState.CONNECTING;
+                        case CONNECTED:
+                            return LinkState.CONNECTED;
+                        case DISCONNECTING:
+                            return LinkState.DISCONNECTING;
+                        default:
+                            return LinkState.DISCONNECTED;
+                    }
+                })
+                .distinctUntilChanged();
+    }
+}
@@ -0,0 +1,107 @@
+package fr.dechriste.iot.airboatcontroller;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import com.polidea.rxandroidble2.RxBleConnection;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import fr.dechriste.iot.airboatcontroller.control.CommandEncoder;
+import fr.dechriste.iot.airboatcontroller.control.PowerMode;
+import fr.dechriste.iot.airboatcontroller.control.TransportMode;
+import fr.dechriste.iot.airboatcontroller.transport.BoatLink;
+import io.reactivex.Completable;
+import io.reactivex.Observable;
+import io.reactivex.Single;
+import timber.log.Timber;
+
+/**
+ * Writes the command frames to the UART characteristic of a JDY-08 module, and reads the
+ * notifications the boat sends back on it.
+ */
+public class BleCommandWriter implements BoatLink {
+    private static final UUID RX_TX_CHARACTERISTIC = UUID.fromString(BleUtils.RX_TX_CHARACTERISTIC);
+    private static final int REQUESTED_MTU = 185;
+
+    private final RxBleConnection mConnection;
+    private final BluetoothGattCharacteristic mCharacteristic;
+    private final TransportMode mMode;
+    private final int mMaxPacketLength;
+
+    private BleCommandWriter(RxBleConnection connection, BluetoothGattCharacteristic characteristic, TransportMode mode, int mtu) {
+        mConnection = connection;
+        mCharacteristic = characteristic;
+        mMode = mode;
+        mMaxPacketLength = mtu - RxBleConnection.GATT_WRITE_MTU_OVERHEAD;
+    }
+
+    /**
+     * Resolves the UART characteristic and, in fast mode, negotiates a larger MTU. Fast mode
+     * falls back to acknowledged writes when the characteristic does not support writes
+     * without response.
+     */
+    public static Single<BleCommandWriter> create(@NonNull RxBleConnection connection, @NonNull TransportMode requestedMode) {
+        return connection.getCharacteristic(RX_TX_CHARACTERISTIC)
+                .flatMap(characteristic -> {
+                    boolean supportsNoResponse = (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0;
+                    if (requestedMode != TransportMode.FAST || !supportsNoResponse) {
+                        return Single.just(new BleCommandWriter(connection, characteristic, TransportMode.ACKNOWLEDGED, RxBleConnection.GATT_MTU_MINIMUM));
+                    }
+                    return connection.requestMtu(REQUESTED_MTU)
+                            .onErrorReturn(throwable -> {
+                                Timber.w(throwable, "MTU negotiation failed");
+                                return RxBleConnection.GATT_MTU_MINIMUM;
+                            })
+                            .map(mtu -> {
+                                Timber.i("Fast transport with MTU %d", mtu);
+                                return new BleCommandWriter(connection, characteristic, TransportMode.FAST, mtu);
+                            });
+                });
+    }
+
+    public RxBleConnection getConnection() {
+        return mConnection;
+    }
+
+    @Override
+    public TransportMode getTransportMode() {
+        return mMode;
+    }
+
+    @Override
+    public int getMaxPacketLength() {
+        return Math.max(mMaxPacketLength, CommandEncoder.MAX_FRAME_LENGTH);
+    }
+
+    @Override
+    public Observable<byte[]> notifications() {
+        return mConnection.setupNotification(mCharacteristic)
+                .flatMap(notifications -> notifications);
+    }
+
+    @Override
+    public Single<Integer> readRssi() {
+        return mConnection.readRssi();
+    }
+
+    @Override
+    public Completable requestPowerMode(PowerMode powerMode) {
+        int priority = powerMode == PowerMode.IDLE
+                ? BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER
+                : BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+        return mConnection.requestConnectionPriority(priority, 1, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Single<byte[]> write(byte[] frame, boolean acknowledged) {
+        // The pipeline keeps a single write in flight, so the shared characteristic
+        // write type cannot change under a queued write.
+        mCharacteristic.setWriteType(acknowledged
+                ? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT
+                : BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        return mConnection.writeCharacteristic(mCharacteristic, frame);
+    }
+}
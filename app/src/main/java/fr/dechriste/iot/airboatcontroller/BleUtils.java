@@ -1,15 +1,21 @@
 package fr.dechriste.iot.airboatcontroller;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 
 import com.polidea.rxandroidble2.RxBleClient;
+import com.polidea.rxandroidble2.internal.RxBleLog;
 
 import androidx.annotation.NonNull;
+import timber.log.Timber;
 
 public class BleUtils {
     public static final String RX_TX_CHARACTERISTIC = "0000ffe1-0000-1000-8000-00805f9b34fb";
     public static final String SERVICE_UUID_MASK = "fffffff0-ffff-ffff-ffff-ffffffffffff";
 
+    private static final String PREFERENCES_NAME = "ble";
+    private static final String KEY_VERBOSE_LOGGING = "verbose_logging";
+
     private static RxBleClient mRxBleClient;
 
     public static RxBleClient getClientInstance(@NonNull Context context) {
@@ -18,4 +24,27 @@ public class BleUtils {
         }
         return mRxBleClient;
     }
+
+    /** Applies the saved BLE library verbosity, which defaults to quiet in release builds. */
+    public static void configureLogging(@NonNull Context context) {
+        RxBleLog.setLogger((level, tag, msg) -> Timber.tag(tag).log(level, msg));
+        applyLogLevel(isVerboseLogging(context));
+    }
+
+    public static boolean isVerboseLogging(@NonNull Context context) {
+        return getPreferences(context).getBoolean(KEY_VERBOSE_LOGGING, BuildConfig.DEBUG);
+    }
+
+    public static void setVerboseLogging(@NonNull Context context, boolean verbose) {
+        getPreferences(context).edit().putBoolean(KEY_VERBOSE_LOGGING, verbose).apply();
+        applyLogLevel(verbose);
+    }
+
+    private static void applyLogLevel(boolean verbose) {
+        RxBleClient.setLogLevel(verbose ? RxBleLog.VERBOSE : RxBleLog.NONE);
+    }
+
+    private static SharedPreferences getPreferences(@NonNull Context context) {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
 }
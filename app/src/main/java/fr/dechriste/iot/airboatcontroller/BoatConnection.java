@@ -0,0 +1,411 @@
+package fr.dechriste.iot.airboatcontroller;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import fr.dechriste.iot.airboatcontroller.control.Clock;
+import fr.dechriste.iot.airboatcontroller.control.CommandCompressor;
+import fr.dechriste.iot.airboatcontroller.control.CommandEncoder;
+import fr.dechriste.iot.airboatcontroller.control.CommandPipeline;
+import fr.dechriste.iot.airboatcontroller.control.ControlChannel;
+import fr.dechriste.iot.airboatcontroller.control.EventLog;
+import fr.dechriste.iot.airboatcontroller.control.LinkQuality;
+import fr.dechriste.iot.airboatcontroller.control.ReconnectPolicy;
+import fr.dechriste.iot.airboatcontroller.control.TransportMode;
+import fr.dechriste.iot.airboatcontroller.recording.RecordingFrameWriter;
+import fr.dechriste.iot.airboatcontroller.recording.SessionRecorder;
+import fr.dechriste.iot.airboatcontroller.recording.SessionReplayer;
+import fr.dechriste.iot.airboatcontroller.telemetry.TelemetryEvent;
+import fr.dechriste.iot.airboatcontroller.telemetry.TelemetryParser;
+import fr.dechriste.iot.airboatcontroller.transport.BoatLink;
+import fr.dechriste.iot.airboatcontroller.transport.BoatTransport;
+import fr.dechriste.iot.airboatcontroller.transport.LinkState;
+import io.reactivex.Completable;
+import io.reactivex.Observable;
+import io.reactivex.android.schedulers.AndroidSchedulers;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.schedulers.Schedulers;
+import io.reactivex.subjects.BehaviorSubject;
+import io.reactivex.subjects.PublishSubject;
+import io.reactivex.subjects.Subject;
+import timber.log.Timber;
+
+/**
+ * Connection to one boat of the fleet, feeding its {@link ControlChannel}.
+ *
+ * Keeps reconnecting with a bounded backoff until {@link #disconnect()} is called. Every boat
+ * has its own connection and pipeline, so a boat out of range only affects itself. The link
+ * state reported by the transport is followed for the whole life of the connection: a drop
+ * detaches the channel and shows in {@link #observeState()} as soon as the stack notices it.
+ * Must be used from the main thread.
+ */
+public class BoatConnection {
+    public enum State {
+        DISCONNECTED, CONNECTING, CONNECTED, RECONNECTING
+    }
+
+    // A firmware not answering the capabilities query by then gets the plain commands
+    private static final long CAPABILITIES_TIMEOUT_MS = 1000;
+    // Signal strength sampling, for the link quality
+    private static final long RSSI_PERIOD_MS = 1000;
+
+    private final BoatTransport mTransport;
+    private final ControlLoop mControlLoop;
+    private final ControlChannel mChannel;
+    private final BoatPreferences mBoatPreferences;
+    private final EventLog mEventLog = AirboatControllerApp.getEventLog();
+    private final ReconnectPolicy mReconnectPolicy = new ReconnectPolicy();
+    private final BehaviorSubject<State> mState = BehaviorSubject.createDefault(State.DISCONNECTED);
+    private final PublishSubject<Throwable> mWriteErrors = PublishSubject.create();
+    // Fed from the BLE callback thread
+    private final Subject<TelemetryEvent> mTelemetry = PublishSubject.<TelemetryEvent>create().toSerialized();
+    private volatile int mBatteryMillivolts;
+    private volatile LinkState mLinkState = LinkState.DISCONNECTED;
+
+    // Start of the current connection attempt, and of the outage when the link dropped
+    private long mConnectStartNanos;
+    private long mDisconnectedNanos;
+    private BoatLink mLink;
+    private RecordingFrameWriter mRecordingWriter;
+    private CommandPipeline mCommandPipeline;
+    // Where the sessions are recorded, null when not recording
+    private File mRecordingDirectory;
+    private Disposable mWriteErrorsDisposable;
+    private Disposable mTelemetryDisposable;
+    private Disposable mNegotiationDisposable;
+    private Disposable mRssiDisposable;
+    private Disposable mPowerModeDisposable;
+    private Disposable mConnectionDisposable;
+    private final Disposable mLinkStateDisposable;
+
+    public BoatConnection(@NonNull BoatTransport transport, @NonNull ControlLoop controlLoop,
+                          @NonNull BoatPreferences boatPreferences) {
+        String macAddress = transport.getAddress();
+        mTransport = transport;
+        mControlLoop = controlLoop;
+        mBoatPreferences = boatPreferences;
+        mChannel = controlLoop.addChannel(macAddress);
+        controlLoop.setGroup(mChannel, boatPreferences.getGroup(macAddress));
+        mLinkStateDisposable = transport.observeLinkState()
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(this::onLinkStateChanged, throwable -> Timber.w(throwable, "Link state of %s unavailable", macAddress));
+    }
+
+    public String getMacAddress() {
+        return mTransport.getAddress();
+    }
+
+    public ControlChannel getChannel() {
+        return mChannel;
+    }
+
+    public State getState() {
+        return mState.getValue();
+    }
+
+    public Observable<State> observeState() {
+        return mState;
+    }
+
+    /** Last link state reported by the transport, readable from any thread. */
+    public LinkState getLinkState() {
+        return mLinkState;
+    }
+
+    public Observable<Throwable> writeErrors() {
+        return mWriteErrors;
+    }
+
+    /** The messages sent back by the boat, on the BLE callback thread. */
+    public Observable<TelemetryEvent> telemetry() {
+        return mTelemetry;
+    }
+
+    /** Last battery voltage reported by the boat, 0 when unknown. */
+    public int getBatteryMillivolts() {
+        return mBatteryMillivolts;
+    }
+
+    @Nullable
+    public CommandPipeline getCommandPipeline() {
+        return mCommandPipeline;
+    }
+
+    /**
+     * Records the session of the boat in this directory, or stops recording when null. A new
+     * file is started on every connection.
+     */
+    public void setRecordingDirectory(@Nullable File recordingDirectory) {
+        mRecordingDirectory = recordingDirectory;
+        if (mRecordingWriter != null) {
+            closeRecorder(mRecordingWriter.setRecorder(openRecorder()));
+        }
+    }
+
+    /** File name prefix of the recordings of this boat, followed by the date. */
+    public String getRecordingPrefix() {
+        return "session-" + getMacAddress().replace(":", "") + "-";
+    }
+
+    /**
+     * Plays the commands of a recorded session back to the boat with their original timing.
+     * The control loop stops sending to this boat until the replay ends.
+     */
+    public Completable replay(@NonNull List<SessionReplayer.Record> records) {
+        BoatLink link = mLink;
+        CommandPipeline commandPipeline = mCommandPipeline;
+        if (link == null) {
+            return Completable.error(new IllegalStateException("Not connected to " + getMacAddress()));
+        }
+        return Completable.defer(() -> {
+                    mChannel.detach();
+                    return new SessionReplayer(records, Clock.SYSTEM, Schedulers.computation()).replayOutbound(link);
+                })
+                .observeOn(AndroidSchedulers.mainThread())
+                .doFinally(() -> {
+                    if (mCommandPipeline == commandPipeline && commandPipeline != null) {
+                        // Same link, still negotiated
+                        CommandCompressor compressor = mChannel.getCompressor();
+                        mChannel.attach(commandPipeline, 0);
+                        mChannel.setCompressor(compressor);
+                        mControlLoop.wake();
+                    }
+                });
+    }
+
+    public boolean isActive() {
+        return mConnectionDisposable != null && !mConnectionDisposable.isDisposed();
+    }
+
+    public void connect(long connectStartNanos) {
+        if (isActive()) {
+            return;
+        }
+        mConnectStartNanos = connectStartNanos;
+        mDisconnectedNanos = 0;
+        mReconnectPolicy.reset();
+        mState.onNext(State.CONNECTING);
+
+        TransportMode transportMode = mBoatPreferences.getTransportMode(getMacAddress());
+        mConnectionDisposable = mTransport.connect(transportMode)
+                .observeOn(AndroidSchedulers.mainThread())
+                .retryWhen(errors -> errors.flatMap(throwable -> {
+                    long delayMs = mReconnectPolicy.nextDelayMs();
+                    onConnectionLost(throwable, delayMs);
+                    return Observable.timer(delayMs, TimeUnit.MILLISECONDS);
+                }))
+                .subscribe(
+                    this::onConnected,
+                    throwable -> Timber.e(throwable, "Connection to %s failed", getMacAddress())
+                );
+    }
+
+    public void disconnect() {
+        if (isActive()) {
+            mEventLog.record(EventLog.Type.DISCONNECTED);
+            mConnectionDisposable.dispose();
+        }
+        mConnectionDisposable = null;
+        closeCommandPipeline();
+        mState.onNext(State.DISCONNECTED);
+    }
+
+    /** Disconnects and removes the boat from the control loop. */
+    public void close() {
+        disconnect();
+        mLinkStateDisposable.dispose();
+        mControlLoop.removeChannel(mChannel);
+        mState.onComplete();
+        mWriteErrors.onComplete();
+        mTelemetry.onComplete();
+    }
+
+    private void onConnected(BoatLink link) {
+        Timber.i("Connection to %s has been established!", getMacAddress());
+        mEventLog.record(EventLog.Type.CONNECTED);
+        mReconnectPolicy.reset();
+        if (mDisconnectedNanos != 0) {
+            mControlLoop.getMetrics().onReconnected(System.nanoTime() - mDisconnectedNanos);
+            mDisconnectedNanos = 0;
+        }
+        openCommandPipeline(link);
+        mState.onNext(State.CONNECTED);
+    }
+
+    private void onConnectionLost(Throwable throwable, long retryDelayMs) {
+        Timber.e(throwable, "Connection to %s failed, retrying in %d ms", getMacAddress(), retryDelayMs);
+        mEventLog.record(EventLog.Type.DISCONNECTED, mReconnectPolicy.getAttempts(), (int) retryDelayMs);
+        if (mCommandPipeline != null) {
+            // The link dropped while in use: measure the outage and the time to the next frame from now.
+            long now = System.nanoTime();
+            mDisconnectedNanos = now;
+            mConnectStartNanos = now;
+        }
+        closeCommandPipeline();
+        if (getState() != State.RECONNECTING) {
+            mState.onNext(State.RECONNECTING);
+        }
+    }
+
+    private void onLinkStateChanged(LinkState linkState) {
+        mLinkState = linkState;
+        if ((linkState == LinkState.DISCONNECTING || linkState == LinkState.DISCONNECTED)
+                && mCommandPipeline != null && getState() == State.CONNECTED) {
+            // The connection error follows and reconnects, stop feeding the link meanwhile
+            Timber.w("Link to %s is going down", getMacAddress());
+            mChannel.detach();
+            mState.onNext(State.RECONNECTING);
+        }
+    }
+
+    private void openCommandPipeline(BoatLink link) {
+        closeCommandPipeline();
+        mLink = link;
+        RecordingFrameWriter recordingWriter = new RecordingFrameWriter(link);
+        recordingWriter.setRecorder(openRecorder());
+        mRecordingWriter = recordingWriter;
+        mCommandPipeline = new CommandPipeline(recordingWriter, link.getTransportMode(), link.getMaxPacketLength(),
+                mControlLoop.getScheduler(), Clock.SYSTEM, mControlLoop.getMetrics());
+        mWriteErrorsDisposable = mCommandPipeline.writeErrors()
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(throwable -> {
+                    Timber.e(throwable, "Write to %s failed", getMacAddress());
+                    mEventLog.record(EventLog.Type.WRITE_FAILED);
+                    mWriteErrors.onNext(throwable);
+                });
+        mChannel.attach(mCommandPipeline, mConnectStartNanos);
+        mControlLoop.wake();
+
+        // A connection error is handled by the connection itself, the telemetry just stops.
+        mTelemetryDisposable = TelemetryParser.parse(link.notifications().doOnNext(recordingWriter::recordInbound), Clock.SYSTEM)
+                .subscribe(this::onTelemetry, throwable -> Timber.w(throwable, "Telemetry of %s stopped", getMacAddress()));
+
+        LinkQuality linkQuality = mCommandPipeline.getLinkQuality();
+        mRssiDisposable = Observable.interval(0, RSSI_PERIOD_MS, TimeUnit.MILLISECONDS)
+                .concatMapSingle(tick -> link.readRssi())
+                .subscribe(linkQuality::onRssi, throwable -> Timber.w(throwable, "Unable to read the RSSI of %s", getMacAddress()));
+
+        // The connection parameters follow the activity of the boat, the frames never wait for them
+        mPowerModeDisposable = mChannel.powerModeChanges()
+                .observeOn(AndroidSchedulers.mainThread())
+                .concatMap(powerMode -> link.requestPowerMode(powerMode)
+                        .doOnComplete(() -> Timber.i("Link to %s is now %s", getMacAddress(), powerMode))
+                        .doOnError(throwable -> Timber.w(throwable, "Unable to switch the link to %s to %s", getMacAddress(), powerMode))
+                        .onErrorComplete()
+                        .toObservable())
+                .subscribe();
+
+        if (mBoatPreferences.isCompressionEnabled(getMacAddress())) {
+            negotiateCompression(mCommandPipeline);
+        }
+    }
+
+    /**
+     * Asks the firmware for its capabilities and compresses the control frames when it
+     * supports it. The plain commands are sent meanwhile, and for good when it does not.
+     */
+    private void negotiateCompression(CommandPipeline commandPipeline) {
+        int resolution = mBoatPreferences.getCompressionResolution(getMacAddress());
+        mNegotiationDisposable = mTelemetry
+                .filter(event -> event.getType() == TelemetryEvent.Type.CAPABILITIES)
+                .firstOrError()
+                .timeout(CAPABILITIES_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(
+                    event -> {
+                        if ((event.getValue() & CommandEncoder.CAPABILITY_COMPRESSED) == 0) {
+                            Timber.i("%s does not support compressed commands", getMacAddress());
+                            return;
+                        }
+                        Timber.i("Compressing the commands to %s with a resolution of %d", getMacAddress(), resolution);
+                        mChannel.setCompressor(new CommandCompressor(Clock.SYSTEM, resolution, CommandCompressor.DEFAULT_KEYFRAME_INTERVAL_MS));
+                        mControlLoop.wake();
+                    },
+                    throwable -> Timber.i("%s did not answer the capabilities query, sending plain commands", getMacAddress())
+                );
+        commandPipeline.submitCommand(CommandEncoder.CAPABILITIES_QUERY);
+    }
+
+    @Nullable
+    private SessionRecorder openRecorder() {
+        if (mRecordingDirectory == null) {
+            return null;
+        }
+        String date = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        File file = new File(mRecordingDirectory, getRecordingPrefix() + date + ".bin");
+        try {
+            Timber.i("Recording the session to %s", file);
+            return new SessionRecorder(file, Clock.SYSTEM);
+        } catch (IOException e) {
+            Timber.e(e, "Unable to record the session to %s", file);
+            return null;
+        }
+    }
+
+    private void closeRecorder(@Nullable SessionRecorder recorder) {
+        if (recorder == null) {
+            return;
+        }
+        if (recorder.getDroppedCount() > 0) {
+            Timber.w("%d records dropped from the session of %s", recorder.getDroppedCount(), getMacAddress());
+        }
+        // Flushing the mapped file may take a while
+        Completable.fromAction(recorder::close)
+                .subscribeOn(Schedulers.io())
+                .subscribe(() -> {}, throwable -> Timber.e(throwable, "Unable to save the session of %s", getMacAddress()));
+    }
+
+    private void onTelemetry(TelemetryEvent event) {
+        mEventLog.record(EventLog.Type.TELEMETRY, event.getType().ordinal(), event.getValue());
+        if (event.getType() == TelemetryEvent.Type.BATTERY) {
+            mBatteryMillivolts = event.getValue();
+        }
+        mTelemetry.onNext(event);
+    }
+
+    private void closeCommandPipeline() {
+        if (mCommandPipeline != null) {
+            mChannel.detach();
+            mCommandPipeline.close();
+            Timber.i("Write throughput to %s: acknowledged %.1f B/s, unacknowledged %.1f B/s", getMacAddress(),
+                    mCommandPipeline.getAcknowledgedThroughput().sampleBytesPerSecond(),
+                    mCommandPipeline.getUnacknowledgedThroughput().sampleBytesPerSecond());
+            StringBuilder radioUsage = new StringBuilder();
+            mChannel.getRadioUsage().appendTo(radioUsage);
+            Timber.i("Writes to %s: %s", getMacAddress(), radioUsage);
+            mCommandPipeline = null;
+        }
+        if (mWriteErrorsDisposable != null && !mWriteErrorsDisposable.isDisposed()) {
+            mWriteErrorsDisposable.dispose();
+            mWriteErrorsDisposable = null;
+        }
+        if (mTelemetryDisposable != null && !mTelemetryDisposable.isDisposed()) {
+            mTelemetryDisposable.dispose();
+            mTelemetryDisposable = null;
+        }
+        if (mNegotiationDisposable != null && !mNegotiationDisposable.isDisposed()) {
+            mNegotiationDisposable.dispose();
+            mNegotiationDisposable = null;
+        }
+        if (mRssiDisposable != null && !mRssiDisposable.isDisposed()) {
+            mRssiDisposable.dispose();
+            mRssiDisposable = null;
+        }
+        if (mPowerModeDisposable != null && !mPowerModeDisposable.isDisposed()) {
+            mPowerModeDisposable.dispose();
+            mPowerModeDisposable = null;
+        }
+        mLink = null;
+        if (mRecordingWriter != null) {
+            closeRecorder(mRecordingWriter.setRecorder(null));
+            mRecordingWriter = null;
+        }
+    }
+}
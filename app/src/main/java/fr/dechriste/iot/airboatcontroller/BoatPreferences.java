@@ -0,0 +1,134 @@
+package fr.dechriste.iot.airboatcontroller;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import fr.dechriste.iot.airboatcontroller.control.CommandCompressor;
+import fr.dechriste.iot.airboatcontroller.control.ControlProfile;
+import fr.dechriste.iot.airboatcontroller.control.ControlTarget;
+import fr.dechriste.iot.airboatcontroller.control.Maneuver;
+import fr.dechriste.iot.airboatcontroller.control.TransportMode;
+
+public class BoatPreferences {
+    /** Straight ahead for 3 s, then a full left turn, see {@link Maneuver}. */
+    public static final String DEFAULT_MANEUVER_SCRIPT = "60;0 3s, 60;-100 1.5s";
+
+    private static final String PREFERENCES_NAME = "boats";
+    private static final String KEY_TRANSPORT_MODE = "transport_mode_";
+    private static final String KEY_LAST_MAC_ADDRESS = "last_mac_address";
+    private static final String KEY_GROUP = "group_";
+    private static final String KEY_FLEET = "fleet";
+    private static final String KEY_FLEET_MODE = "fleet_mode";
+    private static final String KEY_COMPRESSION = "compression_";
+    private static final String KEY_COMPRESSION_RESOLUTION = "compression_resolution_";
+    private static final String KEY_GAMEPAD_PRIORITY = "gamepad_priority";
+    private static final String KEY_CONTROL_PROFILE = "control_profile";
+    private static final String KEY_MANEUVER_SCRIPT = "maneuver_script";
+
+    private final SharedPreferences mPreferences;
+
+    public BoatPreferences(@NonNull Context context) {
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /** The boat selected last, connected to on launch. */
+    @Nullable
+    public String getLastMacAddress() {
+        return mPreferences.getString(KEY_LAST_MAC_ADDRESS, null);
+    }
+
+    public void setLastMacAddress(@NonNull String macAddress) {
+        mPreferences.edit().putString(KEY_LAST_MAC_ADDRESS, macAddress).apply();
+    }
+
+    public TransportMode getTransportMode(@NonNull String macAddress) {
+        String mode = mPreferences.getString(KEY_TRANSPORT_MODE + macAddress, null);
+        return mode != null ? TransportMode.valueOf(mode) : TransportMode.ACKNOWLEDGED;
+    }
+
+    public void setTransportMode(@NonNull String macAddress, @NonNull TransportMode mode) {
+        mPreferences.edit().putString(KEY_TRANSPORT_MODE + macAddress, mode.name()).apply();
+    }
+
+    /** Whether to compress the control frames when the firmware of the boat supports it. */
+    public boolean isCompressionEnabled(@NonNull String macAddress) {
+        return mPreferences.getBoolean(KEY_COMPRESSION + macAddress, false);
+    }
+
+    public void setCompressionEnabled(@NonNull String macAddress, boolean enabled) {
+        mPreferences.edit().putBoolean(KEY_COMPRESSION + macAddress, enabled).apply();
+    }
+
+    /** Smallest change of the control values sent to the boat when compressing. */
+    public int getCompressionResolution(@NonNull String macAddress) {
+        return mPreferences.getInt(KEY_COMPRESSION_RESOLUTION + macAddress, CommandCompressor.DEFAULT_RESOLUTION);
+    }
+
+    public void setCompressionResolution(@NonNull String macAddress, int resolution) {
+        mPreferences.edit().putInt(KEY_COMPRESSION_RESOLUTION + macAddress, resolution).apply();
+    }
+
+    /** Group of the boat in the fleet, {@link ControlTarget#NO_GROUP} when it has none. */
+    public int getGroup(@NonNull String macAddress) {
+        return mPreferences.getInt(KEY_GROUP + macAddress, ControlTarget.NO_GROUP);
+    }
+
+    public void setGroup(@NonNull String macAddress, int group) {
+        mPreferences.edit().putInt(KEY_GROUP + macAddress, group).apply();
+    }
+
+    /** The boats of the last fleet session, connected to on launch in fleet mode. */
+    @NonNull
+    public List<String> getFleet() {
+        String fleet = mPreferences.getString(KEY_FLEET, "");
+        return fleet.isEmpty() ? Collections.emptyList() : Arrays.asList(fleet.split(","));
+    }
+
+    public void setFleet(@NonNull Iterable<String> macAddresses) {
+        mPreferences.edit().putString(KEY_FLEET, TextUtils.join(",", macAddresses)).apply();
+    }
+
+    /** Whether selecting a boat adds it to the fleet instead of replacing the current one. */
+    public boolean isFleetMode() {
+        return mPreferences.getBoolean(KEY_FLEET_MODE, false);
+    }
+
+    public void setFleetMode(boolean fleetMode) {
+        mPreferences.edit().putBoolean(KEY_FLEET_MODE, fleetMode).apply();
+    }
+
+    /** Whether the game controller overrides the touch joysticks while in use. */
+    public boolean isGamepadPriority() {
+        return mPreferences.getBoolean(KEY_GAMEPAD_PRIORITY, false);
+    }
+
+    public void setGamepadPriority(boolean gamepadPriority) {
+        mPreferences.edit().putBoolean(KEY_GAMEPAD_PRIORITY, gamepadPriority).apply();
+    }
+
+    public ControlProfile getControlProfile() {
+        String profile = mPreferences.getString(KEY_CONTROL_PROFILE, null);
+        return profile != null ? ControlProfile.valueOf(profile) : ControlProfile.RACE;
+    }
+
+    public void setControlProfile(@NonNull ControlProfile profile) {
+        mPreferences.edit().putString(KEY_CONTROL_PROFILE, profile.name()).apply();
+    }
+
+    /** The maneuver run last. */
+    @NonNull
+    public String getManeuverScript() {
+        return mPreferences.getString(KEY_MANEUVER_SCRIPT, DEFAULT_MANEUVER_SCRIPT);
+    }
+
+    public void setManeuverScript(@NonNull String script) {
+        mPreferences.edit().putString(KEY_MANEUVER_SCRIPT, script).apply();
+    }
+}
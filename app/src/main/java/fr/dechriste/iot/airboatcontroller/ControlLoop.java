@@ -0,0 +1,326 @@
+package fr.dechriste.iot.airboatcontroller;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import fr.dechriste.iot.airboatcontroller.control.Clock;
+import fr.dechriste.iot.airboatcontroller.control.CommandEncoder;
+import fr.dechriste.iot.airboatcontroller.control.ControlChannel;
+import fr.dechriste.iot.airboatcontroller.control.ControlMetrics;
+import fr.dechriste.iot.airboatcontroller.control.ControlProfile;
+import fr.dechriste.iot.airboatcontroller.control.ControlSnapshot;
+import fr.dechriste.iot.airboatcontroller.control.ControlTarget;
+import fr.dechriste.iot.airboatcontroller.control.InputArbiter;
+import fr.dechriste.iot.airboatcontroller.control.Maneuver;
+import fr.dechriste.iot.airboatcontroller.control.ManeuverSequencer;
+import io.reactivex.Observable;
+import io.reactivex.Scheduler;
+import io.reactivex.android.schedulers.AndroidSchedulers;
+
+/**
+ * Encodes and submits the control frames of every boat from a dedicated high priority thread,
+ * so layout passes and redraws on the UI thread do not add jitter to the command cadence.
+ *
+ * The control inputs go to the boats matching the current {@link ControlTarget}; a boat
+ * leaving the target is stopped. The inputs of the touch joysticks and of the game controller
+ * are arbitrated by an {@link InputArbiter}, and published as one snapshot. While no boat is
+ * connected, or in trim mode, the loop does not tick at all: attaching a connection or leaving
+ * trim mode must {@link #wake()} it. A boat left idle only ticks at the idle heartbeat, and
+ * every input wakes the loop, so it is back to full rate with the frame carrying that input.
+ *
+ * A scripted {@link Maneuver} is run on the control thread, its steps going out on the tick
+ * they are due. A touch or game controller input, or an emergency stop, aborts it and stops
+ * the boats; that input is not applied.
+ */
+public class ControlLoop {
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Scheduler mScheduler;
+    private final Runnable mTickRunnable = this::tick;
+    private final ControlMetrics mMetrics = new ControlMetrics();
+    private final InputArbiter mInputArbiter = new InputArbiter(Clock.SYSTEM);
+    private final ManeuverSequencer mManeuverSequencer = new ManeuverSequencer(Clock.SYSTEM, this::applyManeuverStep);
+    private final long mMinIntervalMs;
+    private final long mHeartbeatNanos;
+    private final long mIdleTimeoutMs;
+    private final long mIdleHeartbeatMs;
+
+    // Only accessed from the control thread
+    private long mNextTickNanos;
+
+    // Copied on change, so the control thread iterates without locking nor allocating
+    private volatile ControlChannel[] mChannels = new ControlChannel[0];
+    private volatile ControlTarget mTarget = ControlTarget.ALL;
+    private volatile boolean mTrimModeEnabled;
+    private volatile ControlProfile mControlProfile = ControlProfile.RACE;
+
+    /**
+     * @param idleTimeoutMs   time a boat stays stopped with no input before going idle, 0 to never go idle.
+     * @param idleHeartbeatMs period of the heartbeat of an idle boat.
+     */
+    public ControlLoop(long minIntervalMs, long heartbeatMs, long idleTimeoutMs, long idleHeartbeatMs) {
+        mMinIntervalMs = minIntervalMs;
+        mHeartbeatNanos = TimeUnit.MILLISECONDS.toNanos(heartbeatMs);
+        mIdleTimeoutMs = idleTimeoutMs;
+        mIdleHeartbeatMs = idleHeartbeatMs;
+        mThread = new HandlerThread("ControlLoop", Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mScheduler = AndroidSchedulers.from(mThread.getLooper());
+        mHandler.post(mTickRunnable);
+    }
+
+    /** Scheduler of the control thread, on which the write results should be observed. */
+    public Scheduler getScheduler() {
+        return mScheduler;
+    }
+
+    public ControlMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    public synchronized ControlChannel addChannel(@NonNull String address) {
+        ControlChannel channel = new ControlChannel(address, mInputArbiter, Clock.SYSTEM, mMetrics, mMinIntervalMs,
+                TimeUnit.NANOSECONDS.toMillis(mHeartbeatNanos));
+        channel.setTargeted(mTarget.matches(channel), System.nanoTime());
+        channel.setControlProfile(mControlProfile);
+        channel.setIdlePolicy(mIdleTimeoutMs, mIdleHeartbeatMs);
+        ControlChannel[] channels = Arrays.copyOf(mChannels, mChannels.length + 1);
+        channels[channels.length - 1] = channel;
+        mChannels = channels;
+        return channel;
+    }
+
+    public synchronized void removeChannel(@NonNull ControlChannel channel) {
+        channel.detach();
+        ControlChannel[] channels = new ControlChannel[mChannels.length];
+        int count = 0;
+        for (ControlChannel other : mChannels) {
+            if (other != channel) {
+                channels[count++] = other;
+            }
+        }
+        mChannels = Arrays.copyOf(channels, count);
+    }
+
+    public ControlChannel[] getChannels() {
+        return mChannels;
+    }
+
+    public ControlTarget getTarget() {
+        return mTarget;
+    }
+
+    /** Routes the inputs to other boats, the ones no longer targeted are stopped. */
+    public synchronized void setTarget(@NonNull ControlTarget target) {
+        long now = System.nanoTime();
+        for (ControlChannel channel : mChannels) {
+            channel.setTargeted(target.matches(channel), now);
+        }
+        mTarget = target;
+        wake();
+    }
+
+    /** Moves a boat to another group, it joins or leaves the current target accordingly. */
+    public synchronized void setGroup(@NonNull ControlChannel channel, int group) {
+        channel.setGroup(group);
+        channel.setTargeted(mTarget.matches(channel), System.nanoTime());
+        wake();
+    }
+
+    public boolean isTrimModeEnabled() {
+        return mTrimModeEnabled;
+    }
+
+    public void setTrimModeEnabled(boolean trimModeEnabled) {
+        mTrimModeEnabled = trimModeEnabled;
+        wake();
+    }
+
+    /** The profile the inputs should be mapped with, see {@link ControlProfile#mapThrottle(int)}. */
+    public ControlProfile getControlProfile() {
+        return mControlProfile;
+    }
+
+    /**
+     * Switches the profile while connected. The current values are brought within its limits
+     * right away, and its slew rate applies from the next frame.
+     */
+    public synchronized void setControlProfile(@NonNull ControlProfile controlProfile) {
+        mControlProfile = controlProfile;
+        for (ControlChannel channel : mChannels) {
+            channel.setControlProfile(controlProfile);
+        }
+        updateControl(ControlSnapshot.Source.SYSTEM, current -> current.next(
+                controlProfile.clampThrottle(current.getThrottle()), controlProfile.clampServo(current.getServo()), ControlSnapshot.Source.SYSTEM));
+    }
+
+    public InputArbiter.Policy getArbitrationPolicy() {
+        return mInputArbiter.getPolicy();
+    }
+
+    public void setArbitrationPolicy(@NonNull InputArbiter.Policy policy) {
+        mInputArbiter.setPolicy(policy);
+    }
+
+    /** The current control values, with the source that set them. */
+    public ControlSnapshot getSnapshot() {
+        return mInputArbiter.getSnapshot();
+    }
+
+    public void setThrottle(@NonNull ControlSnapshot.Source source, int throttle) {
+        if (!abortsManeuver(source)) {
+            onInput(mInputArbiter.setThrottle(source, throttle));
+        }
+    }
+
+    public void setServo(@NonNull ControlSnapshot.Source source, int servo) {
+        if (!abortsManeuver(source)) {
+            onInput(mInputArbiter.setServo(source, servo));
+        }
+    }
+
+    /** Sets both values at once, e.g. from the two axes of a stick. */
+    public void setControl(@NonNull ControlSnapshot.Source source, int throttle, int servo) {
+        if (!abortsManeuver(source)) {
+            onInput(mInputArbiter.set(source, throttle, servo));
+        }
+    }
+
+    /**
+     * Changes the values from the current ones, e.g. to reverse the throttle, without losing
+     * a concurrent update.
+     *
+     * @return false when the arbitration rejected the source.
+     */
+    public boolean updateControl(@NonNull ControlSnapshot.Source source, @NonNull InputArbiter.Update update) {
+        return !abortsManeuver(source) && onInput(mInputArbiter.submit(source, update));
+    }
+
+    /**
+     * Runs the maneuver from now, replacing the one running. Its values are kept within the
+     * limits of the control profile, and the throttle follows its slew rate: the
+     * {@link ControlProfile#RACE} profile sends them as written.
+     */
+    public void startManeuver(@NonNull Maneuver maneuver) {
+        mManeuverSequencer.start(maneuver);
+        wake();
+    }
+
+    public boolean isManeuverRunning() {
+        return mManeuverSequencer.isRunning();
+    }
+
+    /** Deadlines missed by the current or last maneuver. */
+    public int getManeuverMissedDeadlines() {
+        return mManeuverSequencer.getMissedDeadlines();
+    }
+
+    /** Steps, deadlines missed and end of the maneuvers, emitted from the control thread or the aborting one. */
+    public Observable<ManeuverSequencer.Event> maneuverEvents() {
+        return mManeuverSequencer.events();
+    }
+
+    // A stick input takes the boats back from a maneuver: they are stopped, the input is dropped
+    private boolean abortsManeuver(ControlSnapshot.Source source) {
+        if (source == ControlSnapshot.Source.SYSTEM || !mManeuverSequencer.isRunning()) {
+            return false;
+        }
+        emergencyStop();
+        return true;
+    }
+
+    // Called from the control thread by the sequencer. The tick sends the values right after,
+    // whatever the spacing of the links, so a step is submitted when it is applied.
+    private void applyManeuverStep(int throttle, int servo) {
+        ControlProfile controlProfile = mControlProfile;
+        mInputArbiter.set(ControlSnapshot.Source.SYSTEM, controlProfile.clampThrottle(throttle), controlProfile.clampServo(servo));
+        long now = System.nanoTime();
+        for (ControlChannel channel : mChannels) {
+            channel.onInput(now);
+            channel.sendNow();
+        }
+    }
+
+    private boolean onInput(ControlSnapshot snapshot) {
+        if (snapshot == null) {
+            return false;
+        }
+        long now = System.nanoTime();
+        for (ControlChannel channel : mChannels) {
+            channel.onInput(now);
+        }
+        wake();
+        return true;
+    }
+
+    /**
+     * Stops every boat, targeted or not, from the calling thread: the stop frames do not wait
+     * for the next tick nor for the frames already queued.
+     */
+    public void emergencyStop() {
+        long now = System.nanoTime();
+        mManeuverSequencer.abort();
+        mInputArbiter.submit(ControlSnapshot.Source.SYSTEM, current -> current.withThrottle(0, ControlSnapshot.Source.SYSTEM));
+        for (ControlChannel channel : mChannels) {
+            channel.emergencyStop(now);
+        }
+        wake();
+    }
+
+    public void sendTrim(@NonNull CommandEncoder.Trim trim) {
+        ControlTarget target = mTarget;
+        mHandler.post(() -> {
+            for (ControlChannel channel : mChannels) {
+                if (target.matches(channel)) {
+                    channel.sendTrim(trim);
+                }
+            }
+        });
+    }
+
+    /** Runs the loop right away so a new control value goes out without waiting for the heartbeat. */
+    public void wake() {
+        mHandler.removeCallbacks(mTickRunnable);
+        mHandler.post(mTickRunnable);
+    }
+
+    public void quit() {
+        mChannels = new ControlChannel[0];
+        mHandler.removeCallbacksAndMessages(null);
+        mThread.quitSafely();
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        // Ticks woken up early by an input are not late, only the timed ones are measured.
+        if (mNextTickNanos != 0 && now >= mNextTickNanos) {
+            mMetrics.onTick(now - mNextTickNanos);
+        }
+
+        // Each channel only submits to its own pipeline, which never blocks, so a slow link
+        // delays its own frames but not the ones of the other boats.
+        // The maneuver steps due are applied first, so they go out on this tick
+        long delayNanos = mManeuverSequencer.tick();
+        boolean paused = mTrimModeEnabled;
+        for (ControlChannel channel : mChannels) {
+            delayNanos = Math.min(delayNanos, channel.tick(paused));
+        }
+
+        mHandler.removeCallbacks(mTickRunnable);
+        if (delayNanos == ControlChannel.IDLE) {
+            // Nothing to send until a boat connects, the trim mode ends or a maneuver starts
+            mNextTickNanos = 0;
+            return;
+        }
+        // Round up so the loop never wakes before the scheduler deadline
+        long delayMs = TimeUnit.NANOSECONDS.toMillis(delayNanos + 999_999);
+        mNextTickNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+        mHandler.postDelayed(mTickRunnable, delayMs);
+    }
+}
@@ -0,0 +1,143 @@
+package fr.dechriste.iot.airboatcontroller;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Build;
+import android.os.IBinder;
+
+import com.polidea.rxandroidble2.RxBleClient;
+
+import androidx.annotation.Nullable;
+import androidx.core.app.NotificationCompat;
+import androidx.core.content.ContextCompat;
+import fr.dechriste.iot.airboatcontroller.control.Clock;
+import fr.dechriste.iot.airboatcontroller.transport.BoatTransport;
+import fr.dechriste.iot.airboatcontroller.transport.SimulatedBoat;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * Hosts the control session: the control loop, the fleet and its connections.
+ *
+ * The activity binds to it and only drives it, so the links keep running while the activity
+ * is recreated. While boats are connected the service is started in the foreground, so the
+ * session also survives the activity being closed or the app going to the background; it
+ * stops once every boat is disconnected and the activity is gone.
+ */
+public class ControlService extends Service {
+    /** Address prefix of the in-process boats, available in debug builds. */
+    public static final String SIMULATED_BOAT_PREFIX = "SIM-";
+
+    private static final String ACTION_DISCONNECT = "fr.dechriste.iot.airboatcontroller.action.DISCONNECT";
+    private static final String NOTIFICATION_CHANNEL_ID = "control";
+    private static final int NOTIFICATION_ID = 1;
+
+    public class LocalBinder extends Binder {
+        public ControlService getService() {
+            return ControlService.this;
+        }
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+    private RxBleClient mRxBleClient;
+    private ControlLoop mControlLoop;
+    private FleetSession mFleetSession;
+    private Disposable mChangesDisposable;
+    private boolean mForeground;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mRxBleClient = BleUtils.getClientInstance(getApplicationContext());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(NOTIFICATION_CHANNEL_ID, "Boat control", NotificationManager.IMPORTANCE_LOW);
+            getSystemService(NotificationManager.class).createNotificationChannel(channel);
+        }
+        mControlLoop = new ControlLoop(
+                getResources().getInteger(R.integer.control_min_interval_ms),
+                getResources().getInteger(R.integer.control_heartbeat_ms),
+                getResources().getInteger(R.integer.control_idle_timeout_ms),
+                getResources().getInteger(R.integer.control_idle_heartbeat_ms));
+        mFleetSession = new FleetSession(this::createTransport, new BoatPreferences(getApplicationContext()), mControlLoop);
+        mChangesDisposable = mFleetSession.observeChanges().subscribe(boat -> updateForeground());
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_DISCONNECT.equals(intent.getAction())) {
+            mFleetSession.disconnectAll();
+        }
+        // Started to go to the foreground, which the fleet may have left meanwhile
+        updateForeground();
+        if (!mForeground) {
+            stopSelf(startId);
+        }
+        return START_NOT_STICKY;
+    }
+
+    @Nullable
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public void onDestroy() {
+        mChangesDisposable.dispose();
+        mFleetSession.close();
+        mControlLoop.quit();
+        super.onDestroy();
+    }
+
+    public ControlLoop getControlLoop() {
+        return mControlLoop;
+    }
+
+    public FleetSession getFleetSession() {
+        return mFleetSession;
+    }
+
+    private BoatTransport createTransport(String address) {
+        if (BuildConfig.DEBUG && address.startsWith(SIMULATED_BOAT_PREFIX)) {
+            return new SimulatedBoat(address, Clock.SYSTEM, Schedulers.computation(), address.hashCode());
+        }
+        return new BleBoatTransport(mRxBleClient.getBleDevice(address));
+    }
+
+    // In the foreground with an up to date notification while the fleet is in use
+    private void updateForeground() {
+        if (mFleetSession.isActive()) {
+            if (!mForeground) {
+                // Keeps the service, and the links, once the activity unbinds
+                ContextCompat.startForegroundService(this, new Intent(this, ControlService.class));
+                mForeground = true;
+            }
+            startForeground(NOTIFICATION_ID, buildNotification());
+        } else if (mForeground) {
+            mForeground = false;
+            stopForeground(true);
+            stopSelf();
+        }
+    }
+
+    private Notification buildNotification() {
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0,
+                new Intent(this, MainActivity.class).setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP), 0);
+        PendingIntent disconnectIntent = PendingIntent.getService(this, 0,
+                new Intent(this, ControlService.class).setAction(ACTION_DISCONNECT), 0);
+        return new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_bluetooth_connected_green)
+                .setContentTitle("Controlling " + mFleetSession.size() + (mFleetSession.size() > 1 ? " boats" : " boat"))
+                .setContentText(mFleetSession.getConnectedCount() + "/" + mFleetSession.size() + " connected")
+                .setContentIntent(contentIntent)
+                .addAction(0, "Disconnect", disconnectIntent)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .build();
+    }
+}
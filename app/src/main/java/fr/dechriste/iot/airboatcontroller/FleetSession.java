@@ -0,0 +1,200 @@
+package fr.dechriste.iot.airboatcontroller;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import fr.dechriste.iot.airboatcontroller.control.ControlTarget;
+import fr.dechriste.iot.airboatcontroller.transport.BoatTransport;
+import io.reactivex.Observable;
+import io.reactivex.disposables.CompositeDisposable;
+import io.reactivex.subjects.PublishSubject;
+
+/**
+ * The boats controlled together, each with its own {@link BoatConnection}, all driven by one
+ * {@link ControlLoop}. Must be used from the main thread.
+ */
+public class FleetSession {
+    /** Beyond this, most phones fail to keep the connections or to serve them at 20 Hz. */
+    public static final int MAX_BOATS = 7;
+
+    public interface TransportFactory {
+        BoatTransport create(String address);
+    }
+
+    private final TransportFactory mTransportFactory;
+    private final BoatPreferences mBoatPreferences;
+    private final ControlLoop mControlLoop;
+    private final Map<String, BoatConnection> mBoats = new LinkedHashMap<>();
+    private final Map<String, CompositeDisposable> mBoatDisposables = new LinkedHashMap<>();
+    private final PublishSubject<BoatConnection> mChanges = PublishSubject.create();
+    private final PublishSubject<BoatConnection> mConnectionsLost = PublishSubject.create();
+    private final PublishSubject<BoatConnection> mWriteErrors = PublishSubject.create();
+    private File mRecordingDirectory;
+
+    public FleetSession(@NonNull TransportFactory transportFactory, @NonNull BoatPreferences boatPreferences, @NonNull ControlLoop controlLoop) {
+        mTransportFactory = transportFactory;
+        mBoatPreferences = boatPreferences;
+        mControlLoop = controlLoop;
+    }
+
+    public ControlLoop getControlLoop() {
+        return mControlLoop;
+    }
+
+    /** Adds a boat to the fleet, or returns it when it is already in. Null when the fleet is full. */
+    @Nullable
+    public BoatConnection addBoat(@NonNull String macAddress) {
+        BoatConnection boat = mBoats.get(macAddress);
+        if (boat != null || mBoats.size() >= MAX_BOATS) {
+            return boat;
+        }
+        boat = new BoatConnection(mTransportFactory.create(macAddress), mControlLoop, mBoatPreferences);
+        boat.setRecordingDirectory(mRecordingDirectory);
+        BoatConnection addedBoat = boat;
+        CompositeDisposable disposables = new CompositeDisposable();
+        disposables.add(boat.observeState()
+                .buffer(2, 1)
+                .filter(states -> states.size() == 2)
+                .subscribe(states -> {
+                    if (states.get(0) == BoatConnection.State.CONNECTED && states.get(1) == BoatConnection.State.RECONNECTING) {
+                        mConnectionsLost.onNext(addedBoat);
+                    }
+                    mChanges.onNext(addedBoat);
+                }));
+        disposables.add(boat.writeErrors().subscribe(throwable -> mWriteErrors.onNext(addedBoat)));
+        mBoats.put(macAddress, boat);
+        mBoatDisposables.put(macAddress, disposables);
+        mBoatPreferences.setFleet(mBoats.keySet());
+        mChanges.onNext(boat);
+        return boat;
+    }
+
+    public void removeBoat(@NonNull String macAddress) {
+        BoatConnection boat = mBoats.remove(macAddress);
+        if (boat == null) {
+            return;
+        }
+        mBoatDisposables.remove(macAddress).dispose();
+        boat.close();
+        if (macAddress.equals(mControlLoop.getTarget().getAddress())) {
+            mControlLoop.setTarget(ControlTarget.ALL);
+        }
+        mBoatPreferences.setFleet(mBoats.keySet());
+        mChanges.onNext(boat);
+    }
+
+    /** Removes every boat from the fleet, and from the saved one. */
+    public void clear() {
+        for (String macAddress : new ArrayList<>(mBoats.keySet())) {
+            removeBoat(macAddress);
+        }
+    }
+
+    @Nullable
+    public BoatConnection getBoat(@NonNull String macAddress) {
+        return mBoats.get(macAddress);
+    }
+
+    public List<BoatConnection> getBoats() {
+        return new ArrayList<>(mBoats.values());
+    }
+
+    public int size() {
+        return mBoats.size();
+    }
+
+    public int getConnectedCount() {
+        int count = 0;
+        for (BoatConnection boat : mBoats.values()) {
+            if (boat.getState() == BoatConnection.State.CONNECTED) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** True while at least one boat is connected or trying to. */
+    public boolean isActive() {
+        for (BoatConnection boat : mBoats.values()) {
+            if (boat.isActive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void connectAll(long connectStartNanos) {
+        for (BoatConnection boat : mBoats.values()) {
+            boat.connect(connectStartNanos);
+        }
+    }
+
+    public void disconnectAll() {
+        for (BoatConnection boat : mBoats.values()) {
+            boat.disconnect();
+        }
+    }
+
+    public void setGroup(@NonNull String macAddress, int group) {
+        BoatConnection boat = mBoats.get(macAddress);
+        if (boat != null) {
+            mControlLoop.setGroup(boat.getChannel(), group);
+            mBoatPreferences.setGroup(macAddress, group);
+            mChanges.onNext(boat);
+        }
+    }
+
+    /** Records the sessions of every boat in this directory, or stops recording when null. */
+    public void setRecordingDirectory(@Nullable File recordingDirectory) {
+        mRecordingDirectory = recordingDirectory;
+        for (BoatConnection boat : mBoats.values()) {
+            boat.setRecordingDirectory(recordingDirectory);
+        }
+    }
+
+    @Nullable
+    public File getRecordingDirectory() {
+        return mRecordingDirectory;
+    }
+
+    public void setTarget(@NonNull ControlTarget target) {
+        mControlLoop.setTarget(target);
+    }
+
+    /** Emits a boat whenever it is added, removed, or its connection state changes. */
+    public Observable<BoatConnection> observeChanges() {
+        return mChanges;
+    }
+
+    /** Emits a boat when its link dropped while in use. */
+    public Observable<BoatConnection> connectionsLost() {
+        return mConnectionsLost;
+    }
+
+    public Observable<BoatConnection> writeErrors() {
+        return mWriteErrors;
+    }
+
+    /**
+     * Closes every connection, when the session ends. The boats stay in the saved fleet, to be
+     * connected to again on the next launch.
+     */
+    public void close() {
+        for (CompositeDisposable disposables : mBoatDisposables.values()) {
+            disposables.dispose();
+        }
+        mBoatDisposables.clear();
+        for (BoatConnection boat : mBoats.values()) {
+            boat.close();
+        }
+        mBoats.clear();
+        mChanges.onComplete();
+        mConnectionsLost.onComplete();
+        mWriteErrors.onComplete();
+    }
+}
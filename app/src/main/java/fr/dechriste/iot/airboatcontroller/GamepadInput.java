@@ -0,0 +1,114 @@
+package fr.dechriste.iot.airboatcontroller;
+
+import android.hardware.input.InputManager;
+import android.util.SparseArray;
+import android.view.InputDevice;
+import android.view.MotionEvent;
+
+import androidx.annotation.NonNull;
+import fr.dechriste.iot.airboatcontroller.control.AxisMapper;
+
+/**
+ * Turns gamepad motion events into servo and throttle values.
+ *
+ * Only the latest sample of a batch is read since each one overwrites the previous. The flat
+ * region of every axis is cached per input device and dropped when the device changes. A
+ * sample within the flat regions reads as centered, so the noise of a stick at rest does not
+ * show as a change.
+ */
+public class GamepadInput implements InputManager.InputDeviceListener {
+    // Horizontal axes first, then vertical ones: left stick, hat, right stick.
+    private static final int[] AXES = {
+            MotionEvent.AXIS_X, MotionEvent.AXIS_HAT_X, MotionEvent.AXIS_Z,
+            MotionEvent.AXIS_Y, MotionEvent.AXIS_HAT_Y, MotionEvent.AXIS_RZ
+    };
+    private static final int HORIZONTAL_OFFSET = 0;
+    private static final int VERTICAL_OFFSET = 3;
+    private static final int AXES_PER_DIRECTION = 3;
+
+    private final SparseArray<float[]> mFlats = new SparseArray<>();
+    private final float[] mValues = new float[AXES.length];
+    private int mServo;
+    private int mThrottle;
+    private boolean mServoChanged;
+    private boolean mThrottleChanged;
+
+    /**
+     * Reads the latest sample of a joystick move event.
+     *
+     * @return false when the event does not come from a game controller.
+     */
+    public boolean update(@NonNull MotionEvent event) {
+        if ((event.getSource() & InputDevice.SOURCE_JOYSTICK) != InputDevice.SOURCE_JOYSTICK
+                || event.getAction() != MotionEvent.ACTION_MOVE) {
+            return false;
+        }
+        float[] flats = getFlats(event);
+        if (flats == null) {
+            return false;
+        }
+        for (int i = 0; i < AXES.length; i++) {
+            mValues[i] = event.getAxisValue(AXES[i]);
+        }
+
+        int servo = AxisMapper.toControlValue(AxisMapper.firstCentered(mValues, flats, HORIZONTAL_OFFSET, AXES_PER_DIRECTION));
+        mServoChanged = servo != mServo;
+        mServo = servo;
+        // Pushing the stick up reports a negative value.
+        int throttle = -AxisMapper.toControlValue(AxisMapper.firstCentered(mValues, flats, VERTICAL_OFFSET, AXES_PER_DIRECTION));
+        // The throttle is also set by the buttons, so the stick only takes over when it moves.
+        mThrottleChanged = throttle != mThrottle;
+        mThrottle = throttle;
+        return true;
+    }
+
+    public int getServo() {
+        return mServo;
+    }
+
+    public int getThrottle() {
+        return mThrottle;
+    }
+
+    /** Whether any axis moved during the last {@link #update(MotionEvent)}. */
+    public boolean isChanged() {
+        return mServoChanged || mThrottleChanged;
+    }
+
+    /** Whether the vertical axes moved during the last {@link #update(MotionEvent)}. */
+    public boolean isThrottleChanged() {
+        return mThrottleChanged;
+    }
+
+    private float[] getFlats(MotionEvent event) {
+        float[] flats = mFlats.get(event.getDeviceId());
+        if (flats == null) {
+            InputDevice device = event.getDevice();
+            if (device == null) {
+                return null;
+            }
+            flats = new float[AXES.length];
+            for (int i = 0; i < AXES.length; i++) {
+                InputDevice.MotionRange range = device.getMotionRange(AXES[i], event.getSource());
+                flats[i] = range != null ? range.getFlat() : AxisMapper.MISSING_AXIS;
+            }
+            mFlats.put(event.getDeviceId(), flats);
+        }
+        return flats;
+    }
+
+    @Override
+    public void onInputDeviceAdded(int deviceId) {
+        mFlats.remove(deviceId);
+    }
+
+    @Override
+    public void onInputDeviceRemoved(int deviceId) {
+        mFlats.remove(deviceId);
+    }
+
+    @Override
+    public void onInputDeviceChanged(int deviceId) {
+        mFlats.remove(deviceId);
+    }
+}
@@ -1,44 +1,107 @@
 package fr.dechriste.iot.airboatcontroller;
 
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
+import android.hardware.input.InputManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
+import android.text.InputType;
+import android.text.TextUtils;
 import android.view.InputDevice;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
 import android.view.View;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.ImageView;
 import android.widget.ProgressBar;
+import android.widget.Spinner;
 import android.widget.Switch;
 import android.widget.TextView;
 
+import com.afollestad.materialdialogs.MaterialDialog;
 import com.google.android.material.snackbar.Snackbar;
-import com.polidea.rxandroidble2.RxBleClient;
-import com.polidea.rxandroidble2.RxBleConnection;
-import com.polidea.rxandroidble2.RxBleDevice;
-import com.polidea.rxandroidble2.internal.RxBleLog;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 import java.util.Locale;
-import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 import butterknife.BindView;
 import butterknife.ButterKnife;
 import butterknife.OnClick;
+import butterknife.OnItemSelected;
+import butterknife.OnLongClick;
+import fr.dechriste.iot.airboatcontroller.control.CommandCompressor;
+import fr.dechriste.iot.airboatcontroller.control.CommandEncoder;
+import fr.dechriste.iot.airboatcontroller.control.CommandPipeline;
+import fr.dechriste.iot.airboatcontroller.control.ControlChannel;
+import fr.dechriste.iot.airboatcontroller.control.ControlProfile;
+import fr.dechriste.iot.airboatcontroller.control.ControlSnapshot;
+import fr.dechriste.iot.airboatcontroller.control.ControlTarget;
+import fr.dechriste.iot.airboatcontroller.control.EventLog;
+import fr.dechriste.iot.airboatcontroller.control.InputArbiter;
+import fr.dechriste.iot.airboatcontroller.control.Maneuver;
+import fr.dechriste.iot.airboatcontroller.control.ManeuverSequencer;
+import fr.dechriste.iot.airboatcontroller.control.TransportMode;
+import fr.dechriste.iot.airboatcontroller.recording.SessionReplayer;
 import io.github.controlwear.virtual.joystick.android.JoystickView;
+import io.reactivex.Completable;
+import io.reactivex.Single;
 import io.reactivex.android.schedulers.AndroidSchedulers;
+import io.reactivex.disposables.CompositeDisposable;
 import io.reactivex.disposables.Disposable;
+import io.reactivex.schedulers.Schedulers;
 import timber.log.Timber;
 
 public class MainActivity extends AppCompatActivity {
-    private static final int DELAY_BLE_MESSAGE_MS = 200;
-    private static final UUID RX_TX_CHARACTERISTIC = UUID.fromString(BleUtils.RX_TX_CHARACTERISTIC);
-
-    private Handler mHandler = new Handler();
-    private BluetoothUpdateRunnable mRunnable = new BluetoothUpdateRunnable();
+    private static final int DEBUG_OVERLAY_REFRESH_MS = 500;
+    // Groups a boat cycles through when long pressing its address, 0 being no group
+    private static final int GROUP_COUNT = 3;
+    private static final String STATE_SELECTED_MAC_ADDRESS = "selected_mac_address";
+
+    // Owned by the service, null until bound
+    private ControlLoop mControlLoop;
+    private FleetSession mFleetSession;
+    private boolean mServiceBound;
+    // Selected while the service was not bound yet
+    private String mPendingMacAddress;
+    private Bundle mSavedInstanceState;
+    private final GamepadInput mGamepadInput = new GamepadInput();
+    private final EventLog mEventLog = AirboatControllerApp.getEventLog();
+    private final CompositeDisposable mFleetDisposables = new CompositeDisposable();
+    private final List<ControlTarget> mControlTargets = new ArrayList<>();
+    private ArrayAdapter<String> mControlTargetAdapter;
+    // The boat selected last, the one the per-boat settings apply to
+    private String mSelectedMacAddress;
     private boolean mTrimModeEnabled;
+    private Handler mHandler = new Handler();
+    private final StringBuilder mDebugOverlayBuilder = new StringBuilder();
+    private final Runnable mDebugOverlayRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if(mFleetSession == null) {
+                mHandler.postDelayed(this, DEBUG_OVERLAY_REFRESH_MS);
+                return;
+            }
+            mDebugOverlayBuilder.setLength(0);
+            appendMetrics(mDebugOverlayBuilder);
+            vDebugOverlay.setText(mDebugOverlayBuilder);
+            mHandler.postDelayed(this, DEBUG_OVERLAY_REFRESH_MS);
+        }
+    };
 
     @BindView(R.id.ic_connection_state)
     ImageView vConnectionState;
@@ -64,6 +127,42 @@ public class MainActivity extends AppCompatActivity {
     @BindView(R.id.leftJoystickView)
     JoystickView vLeftJoystick;
 
+    @BindView(R.id.fastLinkMode)
+    Switch vFastLinkMode;
+
+    @BindView(R.id.compressedCommands)
+    Switch vCompressedCommands;
+
+    @BindView(R.id.fleetMode)
+    Switch vFleetMode;
+
+    @BindView(R.id.gamepadPriority)
+    Switch vGamepadPriority;
+
+    @BindView(R.id.controlProfile)
+    Spinner vControlProfile;
+
+    @BindView(R.id.trimMode)
+    Switch vTrimMode;
+
+    @BindView(R.id.recordSession)
+    Switch vRecordSession;
+
+    @BindView(R.id.replaySessionButton)
+    Button vReplaySessionButton;
+
+    @BindView(R.id.runManeuverButton)
+    Button vRunManeuverButton;
+
+    @BindView(R.id.controlTarget)
+    Spinner vControlTarget;
+
+    @BindView(R.id.verboseBleLogs)
+    Switch vVerboseBleLogs;
+
+    @BindView(R.id.debugOverlay)
+    TextView vDebugOverlay;
+
     @BindView(R.id.trimLeft)
     Button vTrimLeft;
 
@@ -73,38 +172,39 @@ public class MainActivity extends AppCompatActivity {
     @BindView(R.id.trimReset)
     Button vTrimReset;
 
-    private class BluetoothUpdateRunnable implements Runnable {
-        @Override
-        public void run() {
-            if (isConnected() && !mTrimModeEnabled) {
-                String message = String.format(Locale.ENGLISH, "AT$PARAMS:%d;%d", mThrottleValue, mServoValue);
-                sendBleMessage(message);
-            }
-            mHandler.postDelayed(mRunnable, DELAY_BLE_MESSAGE_MS);
-        }
-    }
-
     private JoystickView.OnMoveListener mOnRightJoystickMoveListener = (angle, strength) -> {
-        mServoValue = (angle == 180) ? -strength : strength;
-        Timber.d("Right Joystick: angle %d and strength %d", angle, strength);
+        mControlLoop.setServo(ControlSnapshot.Source.TOUCH, mControlLoop.getControlProfile().mapServo((angle == 180) ? -strength : strength));
+        mEventLog.record(EventLog.Type.JOYSTICK_RIGHT, angle, strength);
     };
 
     private JoystickView.OnMoveListener mOnLeftJoystickMoveListener = (angle, strength) -> {
-        Timber.d("Left Joystick: angle %d and strength %d", angle, strength);
+        mEventLog.record(EventLog.Type.JOYSTICK_LEFT, angle, strength);
+        ControlProfile profile = mControlLoop.getControlProfile();
         if(angle == 270) {
-            mThrottleValue = -strength;
+            mControlLoop.setThrottle(ControlSnapshot.Source.TOUCH, profile.mapThrottle(-strength));
         } else {
-            mThrottleValue = strength;
+            mControlLoop.setThrottle(ControlSnapshot.Source.TOUCH, profile.mapThrottle(strength));
         }
     };
 
-    private RxBleClient mRxBleClient;
-    private RxBleDevice mBleDevice;
-    private RxBleConnection mRxBleConnection;
-    private Disposable mBleConnectionDisposable;
+    private BoatPreferences mBoatPreferences;
 
-    private volatile int mThrottleValue = 0;
-    private volatile int mServoValue = 0;
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            ControlService service = ((ControlService.LocalBinder) binder).getService();
+            mControlLoop = service.getControlLoop();
+            mFleetSession = service.getFleetSession();
+            onSessionAttached();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mFleetDisposables.clear();
+            mControlLoop = null;
+            mFleetSession = null;
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -114,32 +214,112 @@ public class MainActivity extends AppCompatActivity {
         ButterKnife.bind(this);
 
         vProgressBar.setVisibility(View.GONE);
-        vSelectButton.setEnabled(true);
+        // Until the service is bound
+        vSelectButton.setEnabled(false);
         vConnectButton.setEnabled(false);
         vDisconnectButton.setEnabled(false);
+        vFastLinkMode.setEnabled(false);
+        vCompressedCommands.setEnabled(false);
         vRightJoystick.setEnabled(false);
         vLeftJoystick.setEnabled(false);
         vTrimLeft.setVisibility(View.GONE);
         vTrimRight.setVisibility(View.GONE);
         vTrimReset.setVisibility(View.GONE);
+        vDebugOverlay.setVisibility(View.GONE);
 
         vRightJoystick.setOnMoveListener(mOnRightJoystickMoveListener);
         vLeftJoystick.setOnMoveListener(mOnLeftJoystickMoveListener);
 
-        mRxBleClient = BleUtils.getClientInstance(getApplicationContext());
+        mBoatPreferences = new BoatPreferences(getApplicationContext());
+        ((InputManager) getSystemService(Context.INPUT_SERVICE)).registerInputDeviceListener(mGamepadInput, null);
+        vVerboseBleLogs.setChecked(BleUtils.isVerboseLogging(this));
+        vFleetMode.setChecked(mBoatPreferences.isFleetMode());
+        vGamepadPriority.setChecked(mBoatPreferences.isGamepadPriority());
+        ArrayAdapter<ControlProfile> profileAdapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_item, ControlProfile.values());
+        profileAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        vControlProfile.setAdapter(profileAdapter);
+        vControlProfile.setSelection(mBoatPreferences.getControlProfile().ordinal());
+
+        mControlTargetAdapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_item);
+        mControlTargetAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        vControlTarget.setAdapter(mControlTargetAdapter);
+
+        mSavedInstanceState = savedInstanceState;
+        mServiceBound = bindService(new Intent(this, ControlService.class), mServiceConnection, Context.BIND_AUTO_CREATE);
+    }
+
+    /** The session is either new, or kept by the service across the recreation of the activity. */
+    private void onSessionAttached() {
+        mFleetDisposables.add(mFleetSession.observeChanges().subscribe(boat -> updateFleetState()));
+        mFleetDisposables.add(mFleetSession.connectionsLost().subscribe(boat ->
+                Snackbar.make(findViewById(R.id.main_layout), "Connection to " + boat.getMacAddress() + " lost, reconnecting", Snackbar.LENGTH_SHORT).show()));
+        mFleetDisposables.add(mFleetSession.writeErrors().subscribe(boat ->
+                Snackbar.make(findViewById(R.id.main_layout), "Unable to send the direction to " + boat.getMacAddress(), Snackbar.LENGTH_SHORT).show()));
+        mFleetDisposables.add(mControlLoop.maneuverEvents()
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(this::onManeuverEvent));
+        updateManeuverButton();
+        onGamepadPriorityClick(vGamepadPriority);
+        onControlProfileSelected(vControlProfile.getSelectedItemPosition());
+
+        if(mFleetSession.size() > 0) {
+            // Still running: only restore the UI
+            mSelectedMacAddress = mSavedInstanceState != null ? mSavedInstanceState.getString(STATE_SELECTED_MAC_ADDRESS) : null;
+            if(mSelectedMacAddress == null || mFleetSession.getBoat(mSelectedMacAddress) == null) {
+                mSelectedMacAddress = mFleetSession.getBoats().iterator().next().getMacAddress();
+            }
+            vFastLinkMode.setChecked(mBoatPreferences.getTransportMode(mSelectedMacAddress) == TransportMode.FAST);
+            vCompressedCommands.setChecked(mBoatPreferences.isCompressionEnabled(mSelectedMacAddress));
+            vRecordSession.setChecked(mFleetSession.getRecordingDirectory() != null);
+            vTrimMode.setChecked(mControlLoop.isTrimModeEnabled());
+            onTrimButtonClick(vTrimMode);
+            applyPendingSelection();
+            updateFleetState();
+            return;
+        }
 
-        mHandler.post(mRunnable);
+        // Connect right away to the boats used last time, without going through the scan.
+        List<String> macAddresses = new ArrayList<>();
+        if(mBoatPreferences.isFleetMode()) {
+            macAddresses.addAll(mBoatPreferences.getFleet());
+        } else if(mBoatPreferences.getLastMacAddress() != null) {
+            macAddresses.add(mBoatPreferences.getLastMacAddress());
+        }
+        for(String macAddress : macAddresses) {
+            if(BuildConfig.DEBUG || !macAddress.startsWith(ControlService.SIMULATED_BOAT_PREFIX)) {
+                selectDevice(macAddress);
+            }
+        }
+        applyPendingSelection();
+        updateFleetState();
+        if(mFleetSession.size() > 0) {
+            connect(mSavedInstanceState == null ? AirboatControllerApp.getStartNanos() : System.nanoTime());
+        }
+    }
 
-        RxBleClient.setLogLevel(RxBleLog.VERBOSE);
-        RxBleLog.setLogger((level, tag, msg) -> Timber.tag(tag).log(level, msg));
+    private void applyPendingSelection() {
+        if(mPendingMacAddress != null) {
+            selectDevice(mPendingMacAddress);
+            mPendingMacAddress = null;
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putString(STATE_SELECTED_MAC_ADDRESS, mSelectedMacAddress);
     }
 
     @Override
     protected void onDestroy() {
-        if(mBleConnectionDisposable != null && mBleConnectionDisposable.isDisposed()) {
-            mBleConnectionDisposable.dispose();
+        mFleetDisposables.dispose();
+        // The session stays with the service, which stops unless boats are connected
+        if(mServiceBound) {
+            unbindService(mServiceConnection);
+            mServiceBound = false;
         }
-        mHandler.removeCallbacks(mRunnable);
+        ((InputManager) getSystemService(Context.INPUT_SERVICE)).unregisterInputDeviceListener(mGamepadInput);
+        mHandler.removeCallbacks(mDebugOverlayRunnable);
 
         super.onDestroy();
     }
@@ -149,90 +329,166 @@ public class MainActivity extends AppCompatActivity {
         startActivityForResult(new Intent(this, ScanActivity.class), ScanActivity.SELECT_BOAT_REQUEST_CODE);
     }
 
+    /** Debug builds only: adds an in-process boat, to try the app without the hardware. */
+    @OnLongClick(R.id.selectBoatButton)
+    boolean onSelectButtonLongClick() {
+        if(!BuildConfig.DEBUG) {
+            return false;
+        }
+        int index = 1;
+        while(mFleetSession.getBoat(ControlService.SIMULATED_BOAT_PREFIX + index) != null) {
+            index++;
+        }
+        selectDevice(ControlService.SIMULATED_BOAT_PREFIX + index);
+        return true;
+    }
+
     @Override
     protected void onActivityResult(int requestCode, int resultCode, @Nullable Intent data) {
         if(requestCode == ScanActivity.SELECT_BOAT_REQUEST_CODE && resultCode == RESULT_OK && data != null) {
             String macAddress = data.getAction();
             if(macAddress != null) {
-                vDeviceMacAddress.setText(macAddress);
-                mBleDevice = mRxBleClient.getBleDevice(macAddress);
-                vConnectButton.setEnabled(true);
+                mBoatPreferences.setLastMacAddress(macAddress);
+                if(mFleetSession != null) {
+                    selectDevice(macAddress);
+                } else {
+                    // The activity was recreated while scanning
+                    mPendingMacAddress = macAddress;
+                }
             }
         }
         super.onActivityResult(requestCode, resultCode, data);
     }
 
+    /** Adds the boat to the fleet, or makes it the only boat when not in fleet mode. */
+    private void selectDevice(String macAddress) {
+        if(!vFleetMode.isChecked()) {
+            for(BoatConnection boat : mFleetSession.getBoats()) {
+                if(!boat.getMacAddress().equals(macAddress)) {
+                    mFleetSession.removeBoat(boat.getMacAddress());
+                }
+            }
+        }
+        BoatConnection boat = mFleetSession.addBoat(macAddress);
+        if(boat == null) {
+            Snackbar.make(findViewById(R.id.main_layout), "The fleet is limited to " + FleetSession.MAX_BOATS + " boats", Snackbar.LENGTH_SHORT).show();
+            return;
+        }
+        if(mFleetSession.isActive()) {
+            // Joining a fleet in use
+            boat.connect(System.nanoTime());
+        }
+        mSelectedMacAddress = macAddress;
+        vFastLinkMode.setChecked(mBoatPreferences.getTransportMode(macAddress) == TransportMode.FAST);
+        vCompressedCommands.setChecked(mBoatPreferences.isCompressionEnabled(macAddress));
+    }
+
     @OnClick(R.id.connectButton)
     void connect() {
-        vProgressBar.setVisibility(View.VISIBLE);
-        vSelectButton.setEnabled(false);
-        vConnectButton.setEnabled(false);
+        connect(System.nanoTime());
+    }
 
-        mBleConnectionDisposable = mBleDevice.establishConnection(false)
-                .observeOn(AndroidSchedulers.mainThread())
-                .subscribe(
-                    rxBleConnection -> {
-                        Timber.i("Connection has been established!");
-                        vDisconnectButton.setEnabled(true);
-                        vProgressBar.setVisibility(View.GONE);
-                        vConnectionState.setImageResource(R.drawable.ic_bluetooth_connected_green);
-                        vRightJoystick.setEnabled(true);
-                        vLeftJoystick.setEnabled(true);
-
-                        // All GATT operations are done through the rxBleConnection.
-                        mRxBleConnection = rxBleConnection;
-                    },
-                    throwable -> {
-                        Timber.e(throwable, "Connection failed");
-                        Snackbar.make(findViewById(R.id.main_layout), "Connection failed", Snackbar.LENGTH_SHORT).show();
-                        vSelectButton.setEnabled(true);
-                        vConnectButton.setEnabled(true);
-                        vRightJoystick.setEnabled(false);
-                        vLeftJoystick.setEnabled(false);
-                        vProgressBar.setVisibility(View.GONE);
-                        vConnectionState.setImageResource(R.drawable.ic_bluetooth_red);
-                    }
-                );
+    /**
+     * Connects every boat of the fleet, each one keeps reconnecting with a bounded backoff until
+     * {@link #disconnect()} is called.
+     */
+    private void connect(long connectStartNanos) {
+        mFleetSession.connectAll(connectStartNanos);
     }
 
     @OnClick(R.id.disconnectButton)
     void disconnect() {
-        vSelectButton.setEnabled(true);
-        vConnectButton.setEnabled(true);
-        vDisconnectButton.setEnabled(false);
-        vRightJoystick.setEnabled(false);
-        vLeftJoystick.setEnabled(false);
-        vConnectionState.setImageResource(R.drawable.ic_bluetooth_red);
-        if(mBleConnectionDisposable != null && !mBleConnectionDisposable.isDisposed()) {
-            mBleConnectionDisposable.dispose();
-            mBleConnectionDisposable = null;
-            mRxBleConnection = null;
-        }
+        mFleetSession.disconnectAll();
     }
 
     private boolean isConnected() {
-        return mBleDevice != null && mBleDevice.getConnectionState() == RxBleConnection.RxBleConnectionState.CONNECTED;
+        return mFleetSession.getConnectedCount() > 0;
     }
 
-    private void sendBleMessage(String message) {
-        if(mRxBleConnection != null && isConnected()) {
-            Disposable disposable = mRxBleConnection.writeCharacteristic(RX_TX_CHARACTERISTIC, message.getBytes())
-                    .observeOn(AndroidSchedulers.mainThread())
-                    .subscribe(
-                    characteristicValue -> {
-                        // Characteristic value confirmed.
-                    },
-                    throwable -> {
-                        Timber.e(throwable, "Write failed");
-                        Snackbar.make(findViewById(R.id.main_layout), "Unable to send the direction to the device", Snackbar.LENGTH_SHORT).show();
-                    }
-                );
+    /** Reflects the state of the whole fleet: connected as soon as one boat is. */
+    private void updateFleetState() {
+        int connected = mFleetSession.getConnectedCount();
+        boolean active = mFleetSession.isActive();
+        boolean connecting = false;
+        boolean idle = false;
+        for(BoatConnection boat : mFleetSession.getBoats()) {
+            BoatConnection.State state = boat.getState();
+            connecting |= state == BoatConnection.State.CONNECTING || state == BoatConnection.State.RECONNECTING;
+            idle |= !boat.isActive();
+        }
+
+        vProgressBar.setVisibility(connecting ? View.VISIBLE : View.GONE);
+        vConnectionState.setImageResource(connected > 0 ? R.drawable.ic_bluetooth_connected_green : R.drawable.ic_bluetooth_red);
+        vSelectButton.setEnabled(!active || vFleetMode.isChecked());
+        vConnectButton.setEnabled(idle);
+        vDisconnectButton.setEnabled(active);
+        vFastLinkMode.setEnabled(mSelectedMacAddress != null);
+        vCompressedCommands.setEnabled(mSelectedMacAddress != null);
+        vRightJoystick.setEnabled(connected > 0);
+        vLeftJoystick.setEnabled(connected > 0);
+
+        if(mFleetSession.size() > 1 || vFleetMode.isChecked()) {
+            vDeviceMacAddress.setText(connected + "/" + mFleetSession.size() + " boats connected");
+        } else {
+            vDeviceMacAddress.setText(mSelectedMacAddress);
+        }
+        updateControlTargets();
+    }
+
+    private void updateControlTargets() {
+        mControlTargets.clear();
+        mControlTargetAdapter.clear();
+        mControlTargets.add(ControlTarget.ALL);
+        mControlTargetAdapter.add("All boats");
+        for(int group = 1; group <= GROUP_COUNT; group++) {
+            mControlTargets.add(ControlTarget.group(group));
+            mControlTargetAdapter.add("Group " + group);
+        }
+        for(BoatConnection boat : mFleetSession.getBoats()) {
+            int group = boat.getChannel().getGroup();
+            mControlTargets.add(ControlTarget.boat(boat.getMacAddress()));
+            mControlTargetAdapter.add(boat.getMacAddress() + (group != ControlTarget.NO_GROUP ? " (group " + group + ")" : ""));
+        }
+        vControlTarget.setSelection(Math.max(0, mControlTargets.indexOf(mControlLoop.getTarget())));
+        vControlTarget.setVisibility(mFleetSession.size() > 1 ? View.VISIBLE : View.GONE);
+    }
+
+    @OnItemSelected(R.id.controlTarget)
+    void onControlTargetSelected(int position) {
+        if(position < mControlTargets.size()) {
+            mFleetSession.setTarget(mControlTargets.get(position));
+        }
+    }
+
+    /** Moves the boat selected last to the next group. */
+    @OnLongClick(R.id.deviceMacAddress)
+    boolean onDeviceMacAddressLongClick() {
+        if(mSelectedMacAddress == null) {
+            return false;
+        }
+        int group = (mBoatPreferences.getGroup(mSelectedMacAddress) + 1) % (GROUP_COUNT + 1);
+        mFleetSession.setGroup(mSelectedMacAddress, group);
+        Snackbar.make(findViewById(R.id.main_layout),
+                mSelectedMacAddress + (group == ControlTarget.NO_GROUP ? " has no group" : " is in group " + group),
+                Snackbar.LENGTH_SHORT).show();
+        return true;
+    }
+
+    private void sendTrim(CommandEncoder.Trim trim) {
+        if(isConnected()) {
+            mEventLog.record(EventLog.Type.TRIM, trim.ordinal(), 0);
+            mControlLoop.sendTrim(trim);
         }
     }
 
     @OnClick(R.id.trimMode)
     void onTrimButtonClick(Switch buttonView) {
+        if(mControlLoop == null) {
+            buttonView.setChecked(false);
+            return;
+        }
         mTrimModeEnabled = buttonView.isChecked();
+        mControlLoop.setTrimModeEnabled(mTrimModeEnabled);
 
         vTrimLeft.setVisibility(mTrimModeEnabled ? View.VISIBLE : View.GONE);
         vTrimRight.setVisibility(mTrimModeEnabled ? View.VISIBLE : View.GONE);
@@ -242,39 +498,280 @@ public class MainActivity extends AppCompatActivity {
         vRightJoystick.setVisibility(mTrimModeEnabled ? View.GONE : View.VISIBLE);
     }
 
+    @OnClick(R.id.fastLinkMode)
+    void onFastLinkModeClick(Switch buttonView) {
+        if(mSelectedMacAddress != null) {
+            // Applied on the next connection, the MTU is only negotiated when connecting.
+            mBoatPreferences.setTransportMode(mSelectedMacAddress, buttonView.isChecked() ? TransportMode.FAST : TransportMode.ACKNOWLEDGED);
+        }
+    }
+
+    @OnClick(R.id.compressedCommands)
+    void onCompressedCommandsClick(Switch buttonView) {
+        if(mSelectedMacAddress != null) {
+            // Applied on the next connection, negotiated with the firmware when connecting.
+            mBoatPreferences.setCompressionEnabled(mSelectedMacAddress, buttonView.isChecked());
+        }
+    }
+
+    @OnClick(R.id.gamepadPriority)
+    void onGamepadPriorityClick(Switch buttonView) {
+        mBoatPreferences.setGamepadPriority(buttonView.isChecked());
+        if(mControlLoop != null) {
+            mControlLoop.setArbitrationPolicy(buttonView.isChecked() ? InputArbiter.Policy.GAMEPAD_PRIORITY : InputArbiter.Policy.LAST_ACTIVE);
+        }
+    }
+
+    @OnItemSelected(R.id.controlProfile)
+    void onControlProfileSelected(int position) {
+        ControlProfile profile = ControlProfile.values()[position];
+        mBoatPreferences.setControlProfile(profile);
+        if(mControlLoop != null) {
+            mControlLoop.setControlProfile(profile);
+        }
+    }
+
+    @OnClick(R.id.fleetMode)
+    void onFleetModeClick(Switch buttonView) {
+        mBoatPreferences.setFleetMode(buttonView.isChecked());
+        if(mFleetSession == null) {
+            return;
+        }
+        if(!buttonView.isChecked() && mSelectedMacAddress != null) {
+            // Back to a single boat: keep the one selected last.
+            selectDevice(mSelectedMacAddress);
+        }
+        updateFleetState();
+    }
+
+    @OnClick(R.id.recordSession)
+    void onRecordSessionClick(Switch buttonView) {
+        if(mFleetSession == null) {
+            buttonView.setChecked(false);
+            return;
+        }
+        mFleetSession.setRecordingDirectory(buttonView.isChecked() ? getSessionsDirectory() : null);
+    }
+
+    private File getSessionsDirectory() {
+        File directory = new File(getExternalFilesDir(null), "sessions");
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            Timber.w("Unable to create %s", directory);
+        }
+        return directory;
+    }
+
+    /** Replays the last recorded session of the boat selected last, with its original timing. */
+    @OnClick(R.id.replaySessionButton)
+    void onReplaySessionClick() {
+        BoatConnection boat = mSelectedMacAddress != null && mFleetSession != null ? mFleetSession.getBoat(mSelectedMacAddress) : null;
+        if(boat == null || boat.getState() != BoatConnection.State.CONNECTED) {
+            Snackbar.make(findViewById(R.id.main_layout), "Connect to the boat to replay its session", Snackbar.LENGTH_SHORT).show();
+            return;
+        }
+        File directory = getSessionsDirectory();
+        String prefix = boat.getRecordingPrefix();
+        vReplaySessionButton.setEnabled(false);
+        mFleetDisposables.add(Single.fromCallable(() -> {
+                    File last = null;
+                    File[] files = directory.listFiles();
+                    if(files != null) {
+                        for(File file : files) {
+                            // The date in the name sorts the sessions
+                            if(file.getName().startsWith(prefix) && (last == null || file.getName().compareTo(last.getName()) > 0)) {
+                                last = file;
+                            }
+                        }
+                    }
+                    if(last == null) {
+                        throw new IllegalStateException("No session recorded for " + boat.getMacAddress());
+                    }
+                    return SessionReplayer.load(last);
+                })
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread())
+                .flatMapCompletable(boat::replay)
+                .doFinally(() -> vReplaySessionButton.setEnabled(true))
+                .subscribe(
+                    () -> Snackbar.make(findViewById(R.id.main_layout), "Replay finished", Snackbar.LENGTH_SHORT).show(),
+                    throwable -> {
+                        Timber.e(throwable, "Replay failed");
+                        Snackbar.make(findViewById(R.id.main_layout), "Replay failed: " + throwable.getMessage(), Snackbar.LENGTH_SHORT).show();
+                    }
+                ));
+    }
+
+    /** Runs a scripted maneuver on the target boats, or stops the one running. */
+    @OnClick(R.id.runManeuverButton)
+    void onRunManeuverClick() {
+        if(mControlLoop == null) {
+            return;
+        }
+        if(mControlLoop.isManeuverRunning()) {
+            mEventLog.record(EventLog.Type.EMERGENCY_STOP);
+            mControlLoop.emergencyStop();
+            return;
+        }
+        if(!isConnected()) {
+            Snackbar.make(findViewById(R.id.main_layout), "Connect to a boat to run a maneuver", Snackbar.LENGTH_SHORT).show();
+            return;
+        }
+        new MaterialDialog.Builder(this)
+                .title("Maneuver")
+                .content("Steps of throttle;servo duration, e.g. 60;0 3s, 0;-100 1.5s. The boat stops at the end, touch a stick to abort.")
+                .inputType(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_FLAG_MULTI_LINE)
+                .input("60;0 3s", mBoatPreferences.getManeuverScript(), (dialog, input) -> {
+                    Maneuver maneuver;
+                    try {
+                        maneuver = Maneuver.parse(input.toString());
+                    } catch (IllegalArgumentException e) {
+                        Snackbar.make(findViewById(R.id.main_layout), e.getMessage(), Snackbar.LENGTH_LONG).show();
+                        return;
+                    }
+                    mBoatPreferences.setManeuverScript(input.toString());
+                    Timber.i("Running the maneuver %s", maneuver);
+                    mControlLoop.startManeuver(maneuver);
+                    updateManeuverButton();
+                })
+                .positiveText("Run")
+                .negativeText(android.R.string.cancel)
+                .show();
+    }
+
+    private void onManeuverEvent(ManeuverSequencer.Event event) {
+        switch (event.getType()) {
+            case DEADLINE_MISSED:
+                Timber.w("Maneuver step %d late by %d us", event.getStep(), TimeUnit.NANOSECONDS.toMicros(event.getLatenessNanos()));
+                break;
+            case FINISHED:
+                Snackbar.make(findViewById(R.id.main_layout), String.format(Locale.US, "Maneuver done, %d deadlines missed, %.1f ms late at most",
+                        mControlLoop.getManeuverMissedDeadlines(), event.getLatenessNanos() / 1e6), Snackbar.LENGTH_LONG).show();
+                break;
+            case ABORTED:
+                Snackbar.make(findViewById(R.id.main_layout), "Maneuver aborted", Snackbar.LENGTH_SHORT).show();
+                break;
+            default:
+                break;
+        }
+        updateManeuverButton();
+    }
+
+    private void updateManeuverButton() {
+        vRunManeuverButton.setText(mControlLoop != null && mControlLoop.isManeuverRunning() ? "Stop maneuver" : "Run maneuver");
+    }
+
+    @OnClick(R.id.debugOverlayMode)
+    void onDebugOverlayClick(Switch buttonView) {
+        vDebugOverlay.setVisibility(buttonView.isChecked() ? View.VISIBLE : View.GONE);
+        mHandler.removeCallbacks(mDebugOverlayRunnable);
+        if(buttonView.isChecked()) {
+            mHandler.post(mDebugOverlayRunnable);
+        }
+    }
+
+    @OnClick(R.id.verboseBleLogs)
+    void onVerboseBleLogsClick(Switch buttonView) {
+        BleUtils.setVerboseLogging(this, buttonView.isChecked());
+    }
+
+    @OnClick(R.id.dumpMetricsButton)
+    void onDumpMetricsClick() {
+        if(mFleetSession == null) {
+            return;
+        }
+        List<String> macAddresses = new ArrayList<>();
+        for(BoatConnection boat : mFleetSession.getBoats()) {
+            macAddresses.add(boat.getMacAddress());
+        }
+        StringBuilder snapshot = new StringBuilder();
+        snapshot.append(new Date()).append('\n')
+                .append(Build.MANUFACTURER).append(' ').append(Build.MODEL)
+                .append(" (Android ").append(Build.VERSION.RELEASE).append(")\n")
+                .append("Boats ").append(macAddresses.isEmpty() ? "none" : TextUtils.join(", ", macAddresses)).append('\n');
+        appendMetrics(snapshot);
+        snapshot.append("\n\nEvents:\n");
+
+        String fileName = "control-metrics-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()) + ".txt";
+        File file = new File(getExternalFilesDir(null), fileName);
+        Disposable disposable = Completable.fromAction(() -> {
+                    try (Writer writer = new FileWriter(file)) {
+                        writer.write(snapshot.toString());
+                        mEventLog.dump(writer);
+                    }
+                })
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(
+                    () -> Snackbar.make(findViewById(R.id.main_layout), "Metrics saved to " + file.getAbsolutePath(), Snackbar.LENGTH_LONG).show(),
+                    throwable -> {
+                        Timber.e(throwable, "Unable to save the metrics");
+                        Snackbar.make(findViewById(R.id.main_layout), "Unable to save the metrics", Snackbar.LENGTH_SHORT).show();
+                    }
+                );
+    }
+
+    private void appendMetrics(StringBuilder builder) {
+        mControlLoop.getMetrics().appendTo(builder);
+        builder.append("\ninput ").append(mControlLoop.getSnapshot());
+        for(BoatConnection boat : mFleetSession.getBoats()) {
+            CommandPipeline commandPipeline = boat.getCommandPipeline();
+            if(commandPipeline != null) {
+                builder.append("\n").append(boat.getMacAddress()).append(' ').append(commandPipeline.getTransportMode())
+                        .append(" ack=").append(commandPipeline.getAcknowledgedThroughput().getTotalBytes())
+                        .append(" B unack=").append(commandPipeline.getUnacknowledgedThroughput().getTotalBytes())
+                        .append(" B");
+                ControlChannel channel = boat.getChannel();
+                builder.append(String.format(Locale.US, "\n  control %.0f B/s, plain %.0f B/s",
+                        channel.getSentThroughput().sampleBytesPerSecond(), channel.getPlainThroughput().sampleBytesPerSecond()));
+                CommandCompressor compressor = channel.getCompressor();
+                if(compressor != null) {
+                    builder.append(", compressed /").append(compressor.getResolution());
+                }
+                builder.append("\n  link ").append(channel.getLinkLevel()).append(' ');
+                commandPipeline.getLinkQuality().appendTo(builder);
+                builder.append(", every ").append(channel.getSendIntervalMs()).append(" ms ")
+                        .append(commandPipeline.isControlAcknowledged() ? "acked" : "unacked");
+                builder.append("\n  ").append(channel.getPowerMode()).append(", writes ");
+                channel.getRadioUsage().appendTo(builder);
+                if(boat.getBatteryMillivolts() != 0) {
+                    builder.append(" batt=").append(boat.getBatteryMillivolts()).append(" mV");
+                }
+            }
+        }
+    }
+
     @OnClick(R.id.trimRight)
     void onTrimRightButtonClick(Button buttonView) {
-        sendBleMessage("AT$TRIM:+");
+        sendTrim(CommandEncoder.Trim.RIGHT);
     }
 
     @OnClick(R.id.trimLeft)
     void onTrimLeftButtonClick(Button buttonView) {
-        sendBleMessage("AT$TRIM:-");
+        sendTrim(CommandEncoder.Trim.LEFT);
     }
 
     @OnClick(R.id.trimReset)
     void onTrimResetButtonClick(Button buttonView) {
-        sendBleMessage("AT$TRIM:R");
+        sendTrim(CommandEncoder.Trim.RESET);
     }
 
     @Override
     public boolean dispatchGenericMotionEvent(MotionEvent event) {
         // Check that the event came from a game controller
-        if ((event.getSource() & InputDevice.SOURCE_JOYSTICK) == InputDevice.SOURCE_JOYSTICK &&
-                event.getAction() == MotionEvent.ACTION_MOVE) {
-
-            // Process all historical movement samples in the batch
-            final int historySize = event.getHistorySize();
-
-            // Process the movements starting from the
-            // earliest historical position in the batch
-            for (int i = 0; i < historySize; i++) {
-                // Process the event at historical position i
-                processJoystickInput(event, i);
+        if (mControlLoop != null && mGamepadInput.update(event)) {
+            // Only a move of the sticks is an input: the noise would override the other sources
+            // and abort a maneuver
+            if (!mGamepadInput.isChanged()) {
+                return true;
+            }
+            mEventLog.record(EventLog.Type.GAMEPAD_AXES, mGamepadInput.getServo(), mGamepadInput.getThrottle());
+            ControlProfile profile = mControlLoop.getControlProfile();
+            int servo = profile.mapServo(mGamepadInput.getServo());
+            if (mGamepadInput.isThrottleChanged()) {
+                mControlLoop.setControl(ControlSnapshot.Source.GAMEPAD, profile.mapThrottle(mGamepadInput.getThrottle()), servo);
+            } else {
+                mControlLoop.setServo(ControlSnapshot.Source.GAMEPAD, servo);
             }
-
-            // Process the current movement sample in the batch (position -1)
-            processJoystickInput(event, -1);
             return true;
         }
         return super.onGenericMotionEvent(event);
@@ -283,16 +780,18 @@ public class MainActivity extends AppCompatActivity {
     @Override
     public boolean dispatchKeyEvent(KeyEvent event) {
         boolean handled = false;
-        if ((event.getSource() & InputDevice.SOURCE_GAMEPAD) == InputDevice.SOURCE_GAMEPAD) {
+        if (mFleetSession != null && (event.getSource() & InputDevice.SOURCE_GAMEPAD) == InputDevice.SOURCE_GAMEPAD) {
             if (event.getRepeatCount() == 0 && event.getAction() == KeyEvent.ACTION_DOWN) {
+                ControlProfile profile = mControlLoop.getControlProfile();
                 switch (event.getKeyCode()) {
                     case 4: // escape
-                        mThrottleValue = 0;
+                        mEventLog.record(EventLog.Type.EMERGENCY_STOP);
+                        mControlLoop.emergencyStop();
                         handled = true;
                         break;
                     case 108: // start
-                        if(mBleDevice != null) {
-                            if (!isConnected()) {
+                        if(mFleetSession.size() > 0) {
+                            if (!mFleetSession.isActive()) {
                                 connect();
                             } else {
                                 disconnect();
@@ -302,35 +801,38 @@ public class MainActivity extends AppCompatActivity {
                         break;
                     case 100: // Y
                         if(mTrimModeEnabled) {
-                            sendBleMessage("AT$TRIM:+");
+                            sendTrim(CommandEncoder.Trim.RIGHT);
                         } else {
-                            mThrottleValue = Math.min(mThrottleValue + 10, 100);
+                            mControlLoop.updateControl(ControlSnapshot.Source.GAMEPAD, current -> current.withThrottle(
+                                    profile.clampThrottle(current.getThrottle() + profile.getThrottleStep()), ControlSnapshot.Source.GAMEPAD));
                         }
                         handled = true;
                         break;
                     case 99: // X
                         if(mTrimModeEnabled) {
-                            sendBleMessage("AT$TRIM:-");
+                            sendTrim(CommandEncoder.Trim.LEFT);
                         } else {
-                            mThrottleValue = Math.max(mThrottleValue - 10, -100);
+                            mControlLoop.updateControl(ControlSnapshot.Source.GAMEPAD, current -> current.withThrottle(
+                                    profile.clampThrottle(current.getThrottle() - profile.getThrottleStep()), ControlSnapshot.Source.GAMEPAD));
                         }
                         handled = true;
                         break;
                     case 96: // A
-                        mThrottleValue = 10;
+                        mControlLoop.setThrottle(ControlSnapshot.Source.GAMEPAD, profile.getCruiseThrottle());
                         handled = true;
                         break;
                     case 97: // B
-                        mThrottleValue = 100;
+                        mControlLoop.setThrottle(ControlSnapshot.Source.GAMEPAD, profile.getMaxForward());
                         handled = true;
                         break;
                     case 109: // Select
                         handled = true;
-                        mThrottleValue = -mThrottleValue;
+                        mControlLoop.updateControl(ControlSnapshot.Source.GAMEPAD, current -> current.withThrottle(
+                                profile.clampThrottle(-current.getThrottle()), ControlSnapshot.Source.GAMEPAD));
                         break;
                     // Handle gamepad
                     default:
-                        Timber.d("Key pressed: %d", event.getKeyCode());
+                        mEventLog.record(EventLog.Type.GAMEPAD_KEY, event.getKeyCode(), 0);
                         handled = true;
                 }
             }
@@ -340,54 +842,4 @@ public class MainActivity extends AppCompatActivity {
         }
         return super.dispatchKeyEvent(event);
     }
-
-    private void processJoystickInput(MotionEvent event, int historyPos) {
-        InputDevice mInputDevice = event.getDevice();
-
-        // Calculate the horizontal distance to move by
-        // using the input value from one of these physical controls:
-        // the left control stick, hat axis, or the right control stick.
-        float x = getCenteredAxis(event, mInputDevice, MotionEvent.AXIS_X, historyPos);
-        if (x == 0) {
-            x = getCenteredAxis(event, mInputDevice, MotionEvent.AXIS_HAT_X, historyPos);
-        }
-        if (x == 0) {
-            x = getCenteredAxis(event, mInputDevice, MotionEvent.AXIS_Z, historyPos);
-        }
-
-        // Calculate the vertical distance to move by
-        // using the input value from one of these physical controls:
-        // the left control stick, hat switch, or the right control stick.
-        float y = getCenteredAxis(event, mInputDevice, MotionEvent.AXIS_Y, historyPos);
-        if (y == 0) {
-            y = getCenteredAxis(event, mInputDevice, MotionEvent.AXIS_HAT_Y, historyPos);
-        }
-        if (y == 0) {
-            y = getCenteredAxis(event, mInputDevice, MotionEvent.AXIS_RZ, historyPos);
-        }
-
-        Timber.d("Joystick X: %f", x);
-        Timber.d("Joystick Y: %f", y);
-
-        mServoValue = Math.round(x * 100);
-    }
-
-    private static float getCenteredAxis(MotionEvent event, InputDevice device, int axis, int historyPos) {
-        final InputDevice.MotionRange range = device.getMotionRange(axis, event.getSource());
-
-        // A joystick at rest does not always report an absolute position of
-        // (0,0). Use the getFlat() method to determine the range of values
-        // bounding the joystick axis center.
-        if (range != null) {
-            final float flat = range.getFlat();
-            final float value = historyPos < 0 ? event.getAxisValue(axis) : event.getHistoricalAxisValue(axis, historyPos);
-
-            // Ignore axis values that are within the 'flat' region of the
-            // joystick axis center.
-            if (Math.abs(value) > flat) {
-                return value;
-            }
-        }
-        return 0;
-    }
 }
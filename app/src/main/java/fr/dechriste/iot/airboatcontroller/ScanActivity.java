@@ -16,30 +16,60 @@ import com.karumi.dexter.Dexter;
 import com.karumi.dexter.listener.single.DialogOnDeniedPermissionListener;
 import com.karumi.dexter.listener.single.PermissionListener;
 import com.polidea.rxandroidble2.RxBleClient;
-import com.polidea.rxandroidble2.RxBleDevice;
 import com.polidea.rxandroidble2.scan.ScanFilter;
+import com.polidea.rxandroidble2.scan.ScanResult;
 import com.polidea.rxandroidble2.scan.ScanSettings;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import butterknife.BindView;
 import butterknife.ButterKnife;
+import fr.dechriste.iot.airboatcontroller.control.Clock;
+import fr.dechriste.iot.airboatcontroller.control.RadioUsage;
+import fr.dechriste.iot.airboatcontroller.scan.DeviceRegistry;
+import fr.dechriste.iot.airboatcontroller.scan.ScanPhase;
+import fr.dechriste.iot.airboatcontroller.scan.ScannedDevice;
+import io.reactivex.Observable;
 import io.reactivex.android.schedulers.AndroidSchedulers;
-import io.reactivex.disposables.Disposable;
+import io.reactivex.disposables.CompositeDisposable;
+import io.reactivex.schedulers.Schedulers;
+import io.reactivex.subjects.BehaviorSubject;
+import io.reactivex.subjects.Subject;
 import timber.log.Timber;
 
+/**
+ * Lists the boats in range. The scan goes through the {@link ScanPhase}s, from low latency to
+ * low power, and counts the scan results of each phase.
+ */
 public class ScanActivity extends AppCompatActivity {
     public static final int SELECT_BOAT_REQUEST_CODE = 0x123;
+    // A boat advertising in range is seen at least once per low power scan cycle
+    private static final long EXPIRY_MS = Math.max(DeviceRegistry.DEFAULT_EXPIRY_MS, 3 * ScanPhase.LOW_POWER.getPublishIntervalMs());
 
-    private ArrayList<RxBleDevice> mDevices = new ArrayList<>();
+    // Only accessed from the registry scheduler
+    private final DeviceRegistry mRegistry = new DeviceRegistry(Clock.SYSTEM, EXPIRY_MS);
+    private List<ScannedDevice> mPublishedDevices = Collections.emptyList();
+
+    // Only accessed from the main thread
+    private List<ScannedDevice> mDevices = Collections.emptyList();
 
     private RxBleClient mRxBleClient;
-    private Disposable mScanDisposable;
+    private BoatPreferences mBoatPreferences;
+    private CompositeDisposable mScanDisposable;
+    // Scan results per minute in each phase of the current scan
+    private RadioUsage<ScanPhase> mScanUsage;
 
     @BindView(R.id.scanned_devices)
     RecyclerView vScannedDevices;
@@ -47,7 +77,7 @@ public class ScanActivity extends AppCompatActivity {
     class BleDeviceViewHolder extends RecyclerView.ViewHolder {
         final TextView mDeviceName;
         final TextView mDeviceMacAddress;
-        RxBleDevice mDevice;
+        ScannedDevice mDevice;
 
         BleDeviceViewHolder(@NonNull View itemView) {
             super(itemView);
@@ -71,7 +101,8 @@ public class ScanActivity extends AppCompatActivity {
                 deviceName = "Unknown device";
             }
             bleDeviceViewHolder.mDeviceName.setText(deviceName);
-            bleDeviceViewHolder.mDeviceMacAddress.setText(bleDeviceViewHolder.mDevice.getMacAddress());
+            bleDeviceViewHolder.mDeviceMacAddress.setText(String.format(Locale.ENGLISH, "%s (%d dBm)",
+                    bleDeviceViewHolder.mDevice.getMacAddress(), bleDeviceViewHolder.mDevice.getRssi()));
             bleDeviceViewHolder.itemView.setOnClickListener(new View.OnClickListener() {
                 @Override
                 public void onClick(View v) {
@@ -103,6 +134,7 @@ public class ScanActivity extends AppCompatActivity {
         vScannedDevices.setAdapter(mAdapter);
 
         mRxBleClient = BleUtils.getClientInstance(getApplicationContext());
+        mBoatPreferences = new BoatPreferences(getApplicationContext());
     }
 
     private void askForPermissions() {
@@ -128,21 +160,137 @@ public class ScanActivity extends AppCompatActivity {
 
         checkBluetoothEnabled();
 
-        mScanDisposable = mRxBleClient.scanBleDevices(
-                    new ScanSettings.Builder().setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY).setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES).build(),
-                    new ScanFilter.Builder().setServiceUuid(ParcelUuid.fromString(BleUtils.RX_TX_CHARACTERISTIC), ParcelUuid.fromString(BleUtils.SERVICE_UUID_MASK)).build())
-                .observeOn(AndroidSchedulers.mainThread())
+        // The registry is fed and published on a single background thread, the main thread
+        // only applies the batched list differences.
+        mDevices = Collections.emptyList();
+        mAdapter.notifyDataSetChanged();
+        mScanDisposable = new CompositeDisposable();
+        mScanDisposable.add(Schedulers.single().scheduleDirect(() -> {
+            mRegistry.clear();
+            mPublishedDevices = Collections.emptyList();
+        }));
+        RadioUsage<ScanPhase> scanUsage = new RadioUsage<>(ScanPhase.class, ScanPhase.LOW_LATENCY, Clock.SYSTEM);
+        mScanUsage = scanUsage;
+        Subject<ScanPhase> phases = BehaviorSubject.<ScanPhase>create().toSerialized();
+        ScanFilter[] knownBoatFilters = knownBoatFilters();
+        mScanDisposable.add(Observable.fromArray(ScanPhase.values())
+                .concatMap(phase -> {
+                    Observable<ScanResult> scan = scanBleDevices(phase, knownBoatFilters)
+                            .doOnSubscribe(disposable -> {
+                                scanUsage.setMode(phase);
+                                phases.onNext(phase);
+                            });
+                    return phase.getDurationMs() > 0 ? scan.take(phase.getDurationMs(), TimeUnit.MILLISECONDS) : scan;
+                })
+                .observeOn(Schedulers.single())
                 .subscribe(
                 rxBleScanResult -> {
-                    if (!mDevices.contains(rxBleScanResult.getBleDevice())) {
-                        mDevices.add(rxBleScanResult.getBleDevice());
-                        mAdapter.notifyDataSetChanged();
-                    }
+                    scanUsage.record(1);
+                    mRegistry.onAdvertisement(rxBleScanResult.getBleDevice().getMacAddress(),
+                            rxBleScanResult.getBleDevice().getName(), rxBleScanResult.getRssi());
                 },
                 throwable -> {
-                    Snackbar.make(findViewById(R.id.main_layout), "Scan failed", Snackbar.LENGTH_SHORT).show();
                     Timber.e(throwable);
-                });
+                    AndroidSchedulers.mainThread().scheduleDirect(() ->
+                            Snackbar.make(findViewById(R.id.main_layout), "Scan failed", Snackbar.LENGTH_SHORT).show());
+                }));
+        mScanDisposable.add(phases
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(phase -> {
+                    Timber.i("Scanning in %s mode", phase);
+                    if(getSupportActionBar() != null) {
+                        getSupportActionBar().setSubtitle(phase == ScanPhase.LOW_LATENCY ? null
+                                : phase.isKnownBoatsOnly() && knownBoatFilters.length > 0 ? "Looking for known boats" : "Power saving scan");
+                    }
+                }));
+        // The advertisements are batched in the registry for longer as the scan slows down
+        mScanDisposable.add(phases
+                .switchMap(phase -> Observable.interval(phase.getPublishIntervalMs(), TimeUnit.MILLISECONDS, Schedulers.single()))
+                .filter(tick -> {
+                    mRegistry.expire();
+                    return mRegistry.hasChanged();
+                })
+                .map(tick -> publishDevices())
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(update -> {
+                    mDevices = update.mDevices;
+                    update.mDiff.dispatchUpdatesTo(mAdapter);
+                }));
+    }
+
+    private Observable<ScanResult> scanBleDevices(ScanPhase phase, ScanFilter[] knownBoatFilters) {
+        int scanMode;
+        switch (phase) {
+            case LOW_LATENCY:
+                scanMode = ScanSettings.SCAN_MODE_LOW_LATENCY;
+                break;
+            case BALANCED:
+                scanMode = ScanSettings.SCAN_MODE_BALANCED;
+                break;
+            default:
+                scanMode = ScanSettings.SCAN_MODE_LOW_POWER;
+                break;
+        }
+        ScanSettings settings = new ScanSettings.Builder().setScanMode(scanMode).setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES).build();
+        if(phase.isKnownBoatsOnly() && knownBoatFilters.length > 0) {
+            return mRxBleClient.scanBleDevices(settings, knownBoatFilters);
+        }
+        return mRxBleClient.scanBleDevices(settings,
+                new ScanFilter.Builder().setServiceUuid(ParcelUuid.fromString(BleUtils.RX_TX_CHARACTERISTIC), ParcelUuid.fromString(BleUtils.SERVICE_UUID_MASK)).build());
+    }
+
+    // The boats connected to before, the simulated ones have no Bluetooth address
+    private ScanFilter[] knownBoatFilters() {
+        Set<String> macAddresses = new LinkedHashSet<>(mBoatPreferences.getFleet());
+        String lastMacAddress = mBoatPreferences.getLastMacAddress();
+        if(lastMacAddress != null) {
+            macAddresses.add(lastMacAddress);
+        }
+        List<ScanFilter> filters = new ArrayList<>();
+        for(String macAddress : macAddresses) {
+            if(BluetoothAdapter.checkBluetoothAddress(macAddress)) {
+                filters.add(new ScanFilter.Builder().setDeviceAddress(macAddress).build());
+            }
+        }
+        return filters.toArray(new ScanFilter[0]);
+    }
+
+    private static class DevicesUpdate {
+        final List<ScannedDevice> mDevices;
+        final DiffUtil.DiffResult mDiff;
+
+        DevicesUpdate(List<ScannedDevice> devices, DiffUtil.DiffResult diff) {
+            mDevices = devices;
+            mDiff = diff;
+        }
+    }
+
+    private DevicesUpdate publishDevices() {
+        List<ScannedDevice> oldDevices = mPublishedDevices;
+        List<ScannedDevice> newDevices = mRegistry.snapshot();
+        mPublishedDevices = newDevices;
+        DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return oldDevices.size();
+            }
+
+            @Override
+            public int getNewListSize() {
+                return newDevices.size();
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+                return oldDevices.get(oldItemPosition).getMacAddress().equals(newDevices.get(newItemPosition).getMacAddress());
+            }
+
+            @Override
+            public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+                return oldDevices.get(oldItemPosition).hasSameContent(newDevices.get(newItemPosition));
+            }
+        });
+        return new DevicesUpdate(newDevices, diff);
     }
 
     private void checkBluetoothEnabled() {
@@ -166,6 +314,12 @@ public class ScanActivity extends AppCompatActivity {
         if(mScanDisposable != null && !mScanDisposable.isDisposed()) {
             mScanDisposable.dispose();
         }
+        if(mScanUsage != null) {
+            StringBuilder scanUsage = new StringBuilder();
+            mScanUsage.appendTo(scanUsage);
+            Timber.i("Scan results: %s", scanUsage);
+            mScanUsage = null;
+        }
         super.onPause();
     }
 }
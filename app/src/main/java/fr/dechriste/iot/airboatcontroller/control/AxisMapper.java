@@ -0,0 +1,33 @@
+package fr.dechriste.iot.airboatcontroller.control;
+
+/**
+ * Maps raw gamepad axis values to control values, independently of the Android input classes.
+ */
+public final class AxisMapper {
+    /** Flat value of an axis the device does not report. */
+    public static final float MISSING_AXIS = Float.NaN;
+
+    private AxisMapper() {
+    }
+
+    /**
+     * Returns the value of the first axis outside its flat region, in the order given, or 0 when
+     * they are all centered. A joystick at rest does not always report an absolute 0, so the
+     * values within the flat region of the axis center are ignored.
+     */
+    public static float firstCentered(float[] values, float[] flats, int offset, int count) {
+        for (int i = offset; i < offset + count; i++) {
+            float flat = flats[i];
+            // NaN never compares greater, so missing axes are skipped
+            if (Math.abs(values[i]) > flat) {
+                return values[i];
+            }
+        }
+        return 0;
+    }
+
+    /** Converts an axis value in [-1, 1] to a control value in [-100, 100]. */
+    public static int toControlValue(float value) {
+        return Math.max(CommandEncoder.MIN_VALUE, Math.min(CommandEncoder.MAX_VALUE, Math.round(value * 100)));
+    }
+}
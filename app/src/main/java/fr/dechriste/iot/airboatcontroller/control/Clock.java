@@ -0,0 +1,10 @@
+package fr.dechriste.iot.airboatcontroller.control;
+
+/**
+ * Monotonic time source, replaced by a fake clock when the control logic runs off-device.
+ */
+public interface Clock {
+    Clock SYSTEM = System::nanoTime;
+
+    long nanoTime();
+}
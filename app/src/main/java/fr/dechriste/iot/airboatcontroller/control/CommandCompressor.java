@@ -0,0 +1,88 @@
+package fr.dechriste.iot.airboatcontroller.control;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shrinks the control frames sent to a firmware announcing
+ * {@link CommandEncoder#CAPABILITY_COMPRESSED}.
+ *
+ * The values are quantized to the resolution, so a change smaller than the boat can act on
+ * does not cause a frame. When a single field changed, only that field is sent. A full
+ * keyframe goes out when both changed, for the heartbeats, and at least once per keyframe
+ * interval, so the boat recovers from a lost update. A field frame carries the absolute
+ * value, never a difference, so a loss is never accumulated.
+ * Not thread-safe: use it from the control thread.
+ */
+public final class CommandCompressor {
+    public static final int DEFAULT_RESOLUTION = 2;
+    public static final long DEFAULT_KEYFRAME_INTERVAL_MS = 1000;
+
+    private final Clock mClock;
+    private final int mResolution;
+    private final long mKeyframeIntervalNanos;
+
+    private boolean mHasSent;
+    private long mLastKeyframeNanos;
+    private int mLastThrottle;
+    private int mLastServo;
+
+    public CommandCompressor(Clock clock) {
+        this(clock, DEFAULT_RESOLUTION, DEFAULT_KEYFRAME_INTERVAL_MS);
+    }
+
+    /**
+     * @param resolution smallest change of a value sent to the boat, 1 to disable the quantization.
+     */
+    public CommandCompressor(Clock clock, int resolution, long keyframeIntervalMs) {
+        if (resolution < 1 || keyframeIntervalMs <= 0) {
+            throw new IllegalArgumentException("Invalid resolution " + resolution + " or keyframe interval " + keyframeIntervalMs + " ms");
+        }
+        mClock = clock;
+        mResolution = resolution;
+        mKeyframeIntervalNanos = TimeUnit.MILLISECONDS.toNanos(keyframeIntervalMs);
+    }
+
+    public int getResolution() {
+        return mResolution;
+    }
+
+    /** Rounds the value to the resolution. The neutral and the full range stay reachable. */
+    public int quantize(int value) {
+        if (value <= CommandEncoder.MIN_VALUE || value >= CommandEncoder.MAX_VALUE) {
+            return Math.max(CommandEncoder.MIN_VALUE, Math.min(CommandEncoder.MAX_VALUE, value));
+        }
+        int quantized = Math.round(value / (float) mResolution) * mResolution;
+        return Math.max(CommandEncoder.MIN_VALUE, Math.min(CommandEncoder.MAX_VALUE, quantized));
+    }
+
+    /**
+     * Encodes the quantized values as a keyframe or a single field frame.
+     *
+     * @param encoder  an encoder in the {@link CommandEncoder.Format#COMPRESSED} format.
+     * @param keyframe true to send both fields, e.g. when the previous frame may be replaced
+     *                 before reaching the link.
+     */
+    public byte[] encode(CommandEncoder encoder, int throttle, int servo, boolean keyframe) {
+        long now = mClock.nanoTime();
+        boolean throttleChanged = throttle != mLastThrottle;
+        boolean servoChanged = servo != mLastServo;
+        byte[] frame;
+        if (keyframe || !mHasSent || throttleChanged == servoChanged || now - mLastKeyframeNanos >= mKeyframeIntervalNanos) {
+            frame = encoder.encodeParams(throttle, servo);
+            mLastKeyframeNanos = now;
+        } else if (throttleChanged) {
+            frame = encoder.encodeThrottle(throttle);
+        } else {
+            frame = encoder.encodeServo(servo);
+        }
+        mHasSent = true;
+        mLastThrottle = throttle;
+        mLastServo = servo;
+        return frame;
+    }
+
+    /** Forgets the last frame, so the next one is a keyframe. */
+    public void reset() {
+        mHasSent = false;
+    }
+}
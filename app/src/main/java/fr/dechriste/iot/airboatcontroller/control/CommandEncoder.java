@@ -0,0 +1,215 @@
+package fr.dechriste.iot.airboatcontroller.control;
+
+/**
+ * Encodes the boat commands without allocating once warmed up.
+ *
+ * Frames are built in a scratch buffer and copied into exact-size arrays owned by the
+ * encoder. Those arrays are recycled after {@link #FRAME_RING_SIZE} frames of the same
+ * length, so a caller must not keep a reference to a frame longer than that.
+ * Not thread-safe: use one encoder per sending thread.
+ */
+public final class CommandEncoder {
+    /** A frame must fit in a single BLE packet with the default MTU. */
+    public static final int MAX_FRAME_LENGTH = 20;
+    public static final int MIN_VALUE = -100;
+    public static final int MAX_VALUE = 100;
+
+    // Binary frame layout: [SYNC][TYPE][payload...][CRC-8]
+    public static final byte BINARY_SYNC = (byte) 0xA5;
+    public static final byte BINARY_TYPE_PARAMS = 0x01;
+    public static final byte BINARY_TYPE_TRIM = 0x02;
+    public static final byte BINARY_TYPE_THROTTLE = 0x03;
+    public static final byte BINARY_TYPE_SERVO = 0x04;
+
+    /** Sent on connection, answered with {@code AT$CAPS:<bits>} by the firmwares that support it. */
+    public static final byte[] CAPABILITIES_QUERY = ascii("AT$CAPS?");
+    /** The firmware understands the binary frames. */
+    public static final int CAPABILITY_BINARY = 1;
+    /** The firmware also understands the single field frames of {@link Format#COMPRESSED}. */
+    public static final int CAPABILITY_COMPRESSED = 2;
+
+    private static final int FRAME_RING_SIZE = 8;
+    private static final byte[] PARAMS_PREFIX = ascii("AT$PARAMS:");
+    private static final byte[] TRIM_PREFIX = ascii("AT$TRIM:");
+    private static final byte[] CRC8_TABLE = crc8Table();
+
+    public enum Format {
+        /** The {@code AT$...} text protocol understood by every firmware. */
+        TEXT,
+        /** Compact frame protected by a CRC-8, for firmwares supporting it. */
+        BINARY,
+        /** Binary frames, plus frames carrying a single field, see {@link CommandCompressor}. */
+        COMPRESSED
+    }
+
+    public enum Trim {
+        LEFT('-'), RIGHT('+'), RESET('R');
+
+        final byte mSymbol;
+
+        Trim(char symbol) {
+            mSymbol = (byte) symbol;
+        }
+    }
+
+    private final Format mFormat;
+    private final byte[] mScratch = new byte[MAX_FRAME_LENGTH];
+    private final byte[][][] mFrames = new byte[MAX_FRAME_LENGTH + 1][FRAME_RING_SIZE][];
+    private final int[] mFrameCursor = new int[MAX_FRAME_LENGTH + 1];
+
+    public CommandEncoder() {
+        this(Format.TEXT);
+    }
+
+    public CommandEncoder(Format format) {
+        mFormat = format;
+    }
+
+    public Format getFormat() {
+        return mFormat;
+    }
+
+    public byte[] encodeParams(int throttle, int servo) {
+        int length = mFormat != Format.TEXT
+                ? writeBinaryParams(mScratch, 0, throttle, servo)
+                : writeParams(mScratch, 0, throttle, servo);
+        return toFrame(length);
+    }
+
+    /** A frame updating the throttle only, in the binary layout whatever the format. */
+    public byte[] encodeThrottle(int throttle) {
+        return toFrame(writeBinaryField(mScratch, 0, BINARY_TYPE_THROTTLE, throttle));
+    }
+
+    /** A frame updating the servo only, in the binary layout whatever the format. */
+    public byte[] encodeServo(int servo) {
+        return toFrame(writeBinaryField(mScratch, 0, BINARY_TYPE_SERVO, servo));
+    }
+
+    public byte[] encodeTrim(Trim trim) {
+        int length = mFormat != Format.TEXT
+                ? writeBinaryTrim(mScratch, 0, trim)
+                : writeTrim(mScratch, 0, trim);
+        return toFrame(length);
+    }
+
+    /** Writes {@code AT$PARAMS:<throttle>;<servo>} and returns the offset following it. */
+    public static int writeParams(byte[] dst, int offset, int throttle, int servo) {
+        offset = writeBytes(dst, offset, PARAMS_PREFIX);
+        offset = writeInt(dst, offset, clamp(throttle));
+        dst[offset++] = ';';
+        return writeInt(dst, offset, clamp(servo));
+    }
+
+    /** Length of the {@code AT$PARAMS} frame carrying these values. */
+    public static int paramsLength(int throttle, int servo) {
+        return PARAMS_PREFIX.length + intLength(clamp(throttle)) + 1 + intLength(clamp(servo));
+    }
+
+    /** Writes {@code AT$TRIM:<symbol>} and returns the offset following it. */
+    public static int writeTrim(byte[] dst, int offset, Trim trim) {
+        offset = writeBytes(dst, offset, TRIM_PREFIX);
+        dst[offset++] = trim.mSymbol;
+        return offset;
+    }
+
+    public static int writeBinaryParams(byte[] dst, int offset, int throttle, int servo) {
+        int start = offset;
+        dst[offset++] = BINARY_SYNC;
+        dst[offset++] = BINARY_TYPE_PARAMS;
+        dst[offset++] = (byte) clamp(throttle);
+        dst[offset++] = (byte) clamp(servo);
+        dst[offset] = crc8(dst, start, offset - start);
+        return offset + 1;
+    }
+
+    public static int writeBinaryField(byte[] dst, int offset, byte type, int value) {
+        int start = offset;
+        dst[offset++] = BINARY_SYNC;
+        dst[offset++] = type;
+        dst[offset++] = (byte) clamp(value);
+        dst[offset] = crc8(dst, start, offset - start);
+        return offset + 1;
+    }
+
+    public static int writeBinaryTrim(byte[] dst, int offset, Trim trim) {
+        int start = offset;
+        dst[offset++] = BINARY_SYNC;
+        dst[offset++] = BINARY_TYPE_TRIM;
+        dst[offset++] = trim.mSymbol;
+        dst[offset] = crc8(dst, start, offset - start);
+        return offset + 1;
+    }
+
+    /** CRC-8 with the 0x07 polynomial, as used by the binary frames. */
+    public static byte crc8(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc = CRC8_TABLE[(crc ^ data[i]) & 0xFF] & 0xFF;
+        }
+        return (byte) crc;
+    }
+
+    private byte[] toFrame(int length) {
+        int slot = mFrameCursor[length];
+        mFrameCursor[length] = (slot + 1) % FRAME_RING_SIZE;
+
+        byte[] frame = mFrames[length][slot];
+        if (frame == null) {
+            frame = new byte[length];
+            mFrames[length][slot] = frame;
+        }
+        System.arraycopy(mScratch, 0, frame, 0, length);
+        return frame;
+    }
+
+    private static int clamp(int value) {
+        return Math.max(MIN_VALUE, Math.min(MAX_VALUE, value));
+    }
+
+    private static int writeBytes(byte[] dst, int offset, byte[] src) {
+        System.arraycopy(src, 0, dst, offset, src.length);
+        return offset + src.length;
+    }
+
+    private static int writeInt(byte[] dst, int offset, int value) {
+        if (value < 0) {
+            dst[offset++] = '-';
+            value = -value;
+        }
+        int digits = intLength(value);
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            dst[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return offset + digits;
+    }
+
+    private static int intLength(int value) {
+        int digits = value < 0 ? 2 : 1;
+        for (int remaining = Math.abs(value / 10); remaining > 0; remaining /= 10) {
+            digits++;
+        }
+        return digits;
+    }
+
+    private static byte[] ascii(String value) {
+        byte[] bytes = new byte[value.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) value.charAt(i);
+        }
+        return bytes;
+    }
+
+    private static byte[] crc8Table() {
+        byte[] table = new byte[256];
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80) != 0 ? (crc << 1) ^ 0x07 : crc << 1;
+            }
+            table[i] = (byte) crc;
+        }
+        return table;
+    }
+}
@@ -0,0 +1,336 @@
+package fr.dechriste.iot.airboatcontroller.control;
+
+import java.util.ArrayDeque;
+
+import io.reactivex.Observable;
+import io.reactivex.Scheduler;
+import io.reactivex.Single;
+import io.reactivex.observers.DisposableSingleObserver;
+import io.reactivex.schedulers.Schedulers;
+import io.reactivex.subjects.PublishSubject;
+import io.reactivex.subjects.Subject;
+
+/**
+ * Bounded outbound queue of a boat connection, in three lanes by priority.
+ *
+ * At most one write is in flight. An emergency stop goes first: it discards the pending
+ * control frame and is written right after the write in flight, with a response, retried
+ * until the boat acknowledges it. The write in flight is never cancelled: a packet handed to
+ * the radio goes out anyway, and a trim written again would be applied twice. One-shot
+ * commands (trim...) are reliable: kept in order, ahead of the control frame, and retried on
+ * failure up to {@link #MAX_ATTEMPTS} times, in a queue small enough to stay within the frame
+ * recycling window of {@link CommandEncoder}. Control frames are best-effort and latest-wins: a control
+ * frame still waiting for the link is replaced by the newer one, so the boat never executes
+ * a stale command, and a failed one is superseded by the next rather than retried.
+ *
+ * In {@link TransportMode#FAST} control frames are written without response, unless
+ * {@link #setControlAcknowledged(boolean)} asks for the responses while the link is poor, and
+ * a command is packed with the pending control frame in one packet when both fit in the MTU.
+ * The outcome of every write feeds the {@link LinkQuality} of the link.
+ */
+public final class CommandPipeline {
+    public static final int MAX_QUEUED_COMMANDS = 4;
+    /** Writes of a stop or a command, the first one included, before it is given up. */
+    public static final int MAX_ATTEMPTS = 5;
+
+    public static final byte BATCH_SEPARATOR = '\n';
+
+    public interface FrameWriter {
+        Single<byte[]> write(byte[] frame, boolean acknowledged);
+    }
+
+    private enum Lane {
+        STOP, RELIABLE, BEST_EFFORT
+    }
+
+    // A frame of the reliable lanes, with its write attempts so far
+    private static final class ReliableFrame {
+        final byte[] mFrame;
+        final long mSubmitNanos;
+        int mAttempts;
+
+        ReliableFrame(byte[] frame, long submitNanos) {
+            // May be retried after the encoder recycled the original, and these frames are rare
+            mFrame = frame.clone();
+            mSubmitNanos = submitNanos;
+        }
+    }
+
+    private final FrameWriter mWriter;
+    private final TransportMode mMode;
+    private final int mMaxPacketLength;
+    private final Scheduler mCallbackScheduler;
+    private final Clock mClock;
+    private final ControlMetrics mMetrics;
+    private final Object mLock = new Object();
+    private final ArrayDeque<ReliableFrame> mPendingCommands = new ArrayDeque<>(MAX_QUEUED_COMMANDS);
+    private ReliableFrame mPendingStop;
+    private byte[] mPendingControl;
+    private WriteObserver mInFlight;
+    private boolean mClosed;
+    private volatile boolean mControlAcknowledged;
+
+    private final LinkQuality mLinkQuality = new LinkQuality();
+    private final ThroughputMeter mAcknowledgedThroughput;
+    private final ThroughputMeter mUnacknowledgedThroughput;
+    private final Subject<Throwable> mWriteErrors = PublishSubject.<Throwable>create().toSerialized();
+
+    public CommandPipeline(FrameWriter writer) {
+        this(writer, TransportMode.ACKNOWLEDGED, CommandEncoder.MAX_FRAME_LENGTH, Schedulers.trampoline(), Clock.SYSTEM, new ControlMetrics());
+    }
+
+    /**
+     * @param callbackScheduler where the write results are handled and the next queued frame is
+     *                          submitted, usually the control thread.
+     */
+    public CommandPipeline(FrameWriter writer, TransportMode mode, int maxPacketLength, Scheduler callbackScheduler,
+                           Clock clock, ControlMetrics metrics) {
+        mWriter = writer;
+        mMode = mode;
+        mMaxPacketLength = maxPacketLength;
+        mCallbackScheduler = callbackScheduler;
+        mClock = clock;
+        mMetrics = metrics;
+        mControlAcknowledged = mode == TransportMode.ACKNOWLEDGED;
+        mAcknowledgedThroughput = new ThroughputMeter(clock);
+        mUnacknowledgedThroughput = new ThroughputMeter(clock);
+    }
+
+    public TransportMode getTransportMode() {
+        return mMode;
+    }
+
+    /**
+     * Whether the control frames wait for the write response. Only has an effect in
+     * {@link TransportMode#FAST}, the other modes always wait.
+     */
+    public void setControlAcknowledged(boolean acknowledged) {
+        mControlAcknowledged = acknowledged || mMode != TransportMode.FAST;
+    }
+
+    public boolean isControlAcknowledged() {
+        return mControlAcknowledged;
+    }
+
+    /** Queues a control frame, replacing the one still waiting for the link if any. */
+    public void submitControl(byte[] frame) {
+        synchronized (mLock) {
+            if (mClosed) {
+                mMetrics.onFramesDropped(1);
+                return;
+            }
+            if (mPendingControl != null) {
+                mMetrics.onFrameCoalesced();
+            }
+            mPendingControl = frame;
+        }
+        drain();
+    }
+
+    /** Queues a one-shot command, dropped when too many commands are already waiting. */
+    public void submitCommand(byte[] frame) {
+        synchronized (mLock) {
+            if (mClosed || mPendingCommands.size() >= MAX_QUEUED_COMMANDS) {
+                mMetrics.onFramesDropped(1);
+                return;
+            }
+            mPendingCommands.add(new ReliableFrame(frame, mClock.nanoTime()));
+        }
+        drain();
+    }
+
+    /**
+     * Sends a stop frame ahead of everything queued, once the write in flight completes. The
+     * pending control frame is discarded.
+     *
+     * @param inputNanos when the stop was requested, to measure its latency until acknowledged.
+     */
+    public void submitStop(byte[] frame, long inputNanos) {
+        synchronized (mLock) {
+            if (mClosed) {
+                mMetrics.onFramesDropped(1);
+                return;
+            }
+            if (mPendingControl != null) {
+                mPendingControl = null;
+                mMetrics.onFramesDropped(1);
+            }
+            mPendingStop = new ReliableFrame(frame, inputNanos);
+        }
+        drain();
+    }
+
+    /** Whether a control frame is still waiting for the link, to be replaced by the next one. */
+    public boolean hasPendingControl() {
+        synchronized (mLock) {
+            return mPendingControl != null;
+        }
+    }
+
+    /** Disposes the write in flight and discards everything still queued. */
+    public void close() {
+        WriteObserver inFlight;
+        synchronized (mLock) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mMetrics.onFramesDropped(mPendingCommands.size() + (mPendingControl != null ? 1 : 0) + (mPendingStop != null ? 1 : 0));
+            mPendingCommands.clear();
+            mPendingControl = null;
+            mPendingStop = null;
+            inFlight = mInFlight;
+            mInFlight = null;
+        }
+        if (inFlight != null) {
+            inFlight.dispose();
+        }
+        mWriteErrors.onComplete();
+    }
+
+    public boolean isClosed() {
+        synchronized (mLock) {
+            return mClosed;
+        }
+    }
+
+    public Observable<Throwable> writeErrors() {
+        return mWriteErrors;
+    }
+
+    public ControlMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    public LinkQuality getLinkQuality() {
+        return mLinkQuality;
+    }
+
+    public ThroughputMeter getAcknowledgedThroughput() {
+        return mAcknowledgedThroughput;
+    }
+
+    public ThroughputMeter getUnacknowledgedThroughput() {
+        return mUnacknowledgedThroughput;
+    }
+
+    private void drain() {
+        WriteObserver observer;
+        synchronized (mLock) {
+            if (mClosed || mInFlight != null) {
+                return;
+            }
+            ReliableFrame reliableFrame;
+            byte[] frame;
+            Lane lane;
+            boolean acknowledged = true;
+            if (mPendingStop != null) {
+                reliableFrame = mPendingStop;
+                mPendingStop = null;
+                frame = reliableFrame.mFrame;
+                lane = Lane.STOP;
+            } else if ((reliableFrame = mPendingCommands.poll()) != null) {
+                frame = reliableFrame.mFrame;
+                lane = Lane.RELIABLE;
+                if (mMode == TransportMode.FAST && mPendingControl != null
+                        && frame.length + 1 + mPendingControl.length <= mMaxPacketLength) {
+                    frame = batch(frame, mPendingControl);
+                    mPendingControl = null;
+                    mMetrics.onCommandBatched();
+                }
+            } else if (mPendingControl != null) {
+                frame = mPendingControl;
+                mPendingControl = null;
+                lane = Lane.BEST_EFFORT;
+                acknowledged = mControlAcknowledged;
+            } else {
+                return;
+            }
+            if (reliableFrame != null) {
+                reliableFrame.mAttempts++;
+            }
+            observer = new WriteObserver(frame, lane, reliableFrame, acknowledged, mClock.nanoTime());
+            mInFlight = observer;
+        }
+        mWriter.write(observer.mFrame, observer.mAcknowledged)
+                .observeOn(mCallbackScheduler)
+                .subscribe(observer);
+    }
+
+    // Commands are rare, so the batch packet is allocated instead of recycled.
+    private static byte[] batch(byte[] command, byte[] control) {
+        byte[] packet = new byte[command.length + 1 + control.length];
+        System.arraycopy(command, 0, packet, 0, command.length);
+        packet[command.length] = BATCH_SEPARATOR;
+        System.arraycopy(control, 0, packet, command.length + 1, control.length);
+        return packet;
+    }
+
+    private void onWriteFinished(WriteObserver observer, Throwable error) {
+        synchronized (mLock) {
+            if (mInFlight != observer) {
+                return;
+            }
+            mInFlight = null;
+        }
+        if (error == null) {
+            long now = mClock.nanoTime();
+            mMetrics.onWriteCompleted(now - observer.mSubmitNanos);
+            mLinkQuality.onWriteCompleted(now - observer.mSubmitNanos);
+            if (observer.mLane == Lane.STOP) {
+                mMetrics.onStopAcknowledged(now - observer.mReliableFrame.mSubmitNanos);
+            }
+            (observer.mAcknowledged ? mAcknowledgedThroughput : mUnacknowledgedThroughput).record(observer.mFrame.length);
+        } else {
+            mMetrics.onWriteFailed();
+            mLinkQuality.onWriteFailed();
+            retry(observer);
+            mWriteErrors.onNext(error);
+        }
+        drain();
+    }
+
+    // Requeues a failed stop or command at the head of its lane, unless a newer stop replaced it
+    private void retry(WriteObserver observer) {
+        ReliableFrame reliableFrame = observer.mReliableFrame;
+        if (reliableFrame == null) {
+            return;
+        }
+        synchronized (mLock) {
+            if (mClosed || reliableFrame.mAttempts >= MAX_ATTEMPTS) {
+                mMetrics.onFramesDropped(1);
+            } else if (observer.mLane == Lane.RELIABLE) {
+                mPendingCommands.addFirst(reliableFrame);
+            } else if (mPendingStop == null) {
+                mPendingStop = reliableFrame;
+            }
+        }
+    }
+
+    private final class WriteObserver extends DisposableSingleObserver<byte[]> {
+        final byte[] mFrame;
+        final Lane mLane;
+        // The stop or command written, null for a control frame
+        final ReliableFrame mReliableFrame;
+        final boolean mAcknowledged;
+        final long mSubmitNanos;
+
+        WriteObserver(byte[] frame, Lane lane, ReliableFrame reliableFrame, boolean acknowledged, long submitNanos) {
+            mFrame = frame;
+            mLane = lane;
+            mReliableFrame = reliableFrame;
+            mAcknowledged = acknowledged;
+            mSubmitNanos = submitNanos;
+        }
+
+        @Override
+        public void onSuccess(byte[] value) {
+            onWriteFinished(this, null);
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            onWriteFinished(this, e);
+        }
+    }
+}
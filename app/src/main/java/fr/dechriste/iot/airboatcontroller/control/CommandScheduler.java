@@ -0,0 +1,84 @@
+package fr.dechriste.iot.airboatcontroller.control;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the control frame has to go out.
+ *
+ * A change of the control values is sent as soon as the minimum spacing since the previous
+ * frame allows it, so a write is never queued faster than the BLE connection interval.
+ * While the values stay the same, the last frame is only repeated at the heartbeat period
+ * so the boat knows the link is still alive. Heartbeats follow an absolute timeline, so a
+ * late wake-up does not push the following ones back.
+ */
+public final class CommandScheduler {
+    public static final long DEFAULT_MIN_INTERVAL_MS = 50;
+    public static final long DEFAULT_HEARTBEAT_MS = 500;
+
+    private final Clock mClock;
+    private long mMinIntervalNanos;
+    private long mHeartbeatNanos;
+
+    private boolean mHasSent;
+    private long mLastSendNanos;
+    private long mHeartbeatDeadlineNanos;
+    private int mLastThrottle;
+    private int mLastServo;
+
+    public CommandScheduler() {
+        this(Clock.SYSTEM, DEFAULT_MIN_INTERVAL_MS, DEFAULT_HEARTBEAT_MS);
+    }
+
+    public CommandScheduler(Clock clock, long minIntervalMs, long heartbeatMs) {
+        mClock = clock;
+        setIntervals(minIntervalMs, heartbeatMs);
+    }
+
+    public void setIntervals(long minIntervalMs, long heartbeatMs) {
+        if (minIntervalMs <= 0 || heartbeatMs < minIntervalMs) {
+            throw new IllegalArgumentException("Invalid intervals: min " + minIntervalMs + " ms, heartbeat " + heartbeatMs + " ms");
+        }
+        mMinIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minIntervalMs);
+        mHeartbeatNanos = TimeUnit.MILLISECONDS.toNanos(heartbeatMs);
+    }
+
+    public long getMinIntervalNanos() {
+        return mMinIntervalNanos;
+    }
+
+    public long getHeartbeatNanos() {
+        return mHeartbeatNanos;
+    }
+
+    /**
+     * Returns 0 when a frame carrying these values must be sent now, otherwise how long
+     * to wait, in nanoseconds, before asking again.
+     */
+    public long nextSendDelayNanos(int throttle, int servo) {
+        if (!mHasSent) {
+            return 0;
+        }
+        long now = mClock.nanoTime();
+        if (throttle != mLastThrottle || servo != mLastServo) {
+            return Math.max(0, mLastSendNanos + mMinIntervalNanos - now);
+        }
+        return Math.max(0, mHeartbeatDeadlineNanos - now);
+    }
+
+    public void onSent(int throttle, int servo) {
+        long now = mClock.nanoTime();
+        boolean heartbeat = mHasSent && throttle == mLastThrottle && servo == mLastServo;
+        long nextHeartbeat = mHeartbeatDeadlineNanos + mHeartbeatNanos;
+        // A heartbeat keeps the timeline unless it fell more than a whole period behind
+        mHeartbeatDeadlineNanos = heartbeat && nextHeartbeat > now ? nextHeartbeat : now + mHeartbeatNanos;
+        mHasSent = true;
+        mLastSendNanos = now;
+        mLastThrottle = throttle;
+        mLastServo = servo;
+    }
+
+    /** Forgets the last frame, e.g. after a reconnection, so the next check sends right away. */
+    public void reset() {
+        mHasSent = false;
+    }
+}
@@ -0,0 +1,436 @@
+package fr.dechriste.iot.airboatcontroller.control;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Observable;
+import io.reactivex.subjects.PublishSubject;
+import io.reactivex.subjects.Subject;
+
+/**
+ * Control state and send cadence of one boat.
+ *
+ * While targeted, the channel sends the values of the {@link InputArbiter} it shares with the
+ * other boats, reading one {@link ControlSnapshot} per frame so the throttle and the servo
+ * always come from the same update; otherwise it sends the neutral values. The target and
+ * the inputs may change from any thread; {@link #tick(boolean)} and
+ * {@link #sendTrim(CommandEncoder.Trim)} must be called from the control thread, which owns
+ * the encoder and the scheduler. Each boat has its own pipeline, so a slow or failing link
+ * never holds the frames of the others.
+ *
+ * Once the firmware has announced it understands them, the control frames can be compressed
+ * with a {@link CommandCompressor}. The bytes of the control frames are metered both as sent
+ * and as the plain {@code AT$PARAMS} frames would have been.
+ *
+ * The spacing of the control frames, and whether they wait for the write response, follow the
+ * quality of the link through a {@link SendRateController}. The throttle sent rises no faster
+ * than the slew rate of the {@link ControlProfile}.
+ *
+ * With an idle policy, a boat stopped with no input for the idle timeout goes
+ * {@link PowerMode#IDLE}: its heartbeat is spaced out to the idle heartbeat, and the change is
+ * published for the link to lower its connection priority. The next input brings it back to
+ * {@link PowerMode#ACTIVE} on the tick it wakes, at the minimum spacing. The link is not
+ * evaluated while idle nor during the evaluation period after, as the low power connection
+ * interval slows the writes down on purpose. The writes of each mode are counted in a
+ * {@link RadioUsage}.
+ */
+public final class ControlChannel {
+    /** Returned by {@link #tick(boolean)} when the channel has nothing to send until attached or resumed. */
+    public static final long IDLE = Long.MAX_VALUE;
+
+    private final String mAddress;
+    private final InputArbiter mInputArbiter;
+    private final Clock mClock;
+    private final ControlMetrics mMetrics;
+
+    private final ThroughputMeter mPlainThroughput;
+    private final ThroughputMeter mSentThroughput;
+    private final Object mStopLock = new Object();
+
+    // Only accessed from the control thread
+    private CommandEncoder mCommandEncoder = new CommandEncoder();
+    private CommandCompressor mActiveCompressor;
+    // Throttle ramping towards the input under the slew rate limit
+    private int mSlewThrottle;
+    private long mSlewNanos;
+    private boolean mThrottleRamping;
+    private final CommandScheduler mCommandScheduler;
+    private final SendRateController mSendRateController;
+    private final long mHeartbeatMs;
+    private final RadioUsage<PowerMode> mRadioUsage;
+    private final Subject<PowerMode> mPowerModeChanges = PublishSubject.<PowerMode>create().toSerialized();
+    // Writes of the attached pipeline already counted in the radio usage
+    private long mCountedWrites;
+    // End of the switch back to the high connection priority after idling, 0 when none
+    private long mWakeUpEndNanos;
+
+    private volatile CommandPipeline mCommandPipeline;
+    // Set once negotiated with the firmware, taken into use by the control thread
+    private volatile CommandCompressor mCompressor;
+    private volatile boolean mResetPending;
+    private volatile int mGroup = ControlTarget.NO_GROUP;
+    private volatile boolean mTargeted;
+    private volatile ControlProfile mControlProfile = ControlProfile.RACE;
+    // Set when the next frame must go out without waiting for the spacing
+    private volatile boolean mSendNow;
+    // Time of the oldest input not sent yet, 0 when there is none
+    private volatile long mPendingInputNanos;
+    // Start of the connection attached last, 0 once its first frame is sent
+    private volatile long mConnectStartNanos;
+    // Chosen by the rate controller, published for the UI
+    private volatile long mSendIntervalMs;
+    private volatile LinkQuality.Level mLinkLevel;
+    // Idle policy, disabled when the timeout is 0
+    private volatile long mIdleTimeoutNanos;
+    private volatile long mIdleHeartbeatMs;
+    // Last input, target change or connection
+    private volatile long mActivityNanos;
+    private volatile PowerMode mPowerMode = PowerMode.ACTIVE;
+
+    public ControlChannel(String address, InputArbiter inputArbiter, Clock clock, ControlMetrics metrics,
+                          long minIntervalMs, long heartbeatMs) {
+        mAddress = address;
+        mInputArbiter = inputArbiter;
+        mClock = clock;
+        mMetrics = metrics;
+        mCommandScheduler = new CommandScheduler(clock, minIntervalMs, heartbeatMs);
+        mSendRateController = new SendRateController(clock, minIntervalMs, heartbeatMs, SendRateController.DEFAULT_EVALUATION_PERIOD_MS);
+        mHeartbeatMs = heartbeatMs;
+        mSendIntervalMs = minIntervalMs;
+        mLinkLevel = mSendRateController.getLevel();
+        mPlainThroughput = new ThroughputMeter(clock);
+        mSentThroughput = new ThroughputMeter(clock);
+        mRadioUsage = new RadioUsage<>(PowerMode.class, PowerMode.ACTIVE, clock);
+        mActivityNanos = clock.nanoTime();
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public int getGroup() {
+        return mGroup;
+    }
+
+    public void setGroup(int group) {
+        mGroup = group;
+    }
+
+    /**
+     * @param connectStartNanos when the connection attempt started, to measure the time to the first frame.
+     */
+    public void attach(CommandPipeline commandPipeline, long connectStartNanos) {
+        // Plain frames until the new link is negotiated
+        mCompressor = null;
+        mPendingInputNanos = 0;
+        mConnectStartNanos = connectStartNanos;
+        // A new link starts active
+        mActivityNanos = mClock.nanoTime();
+        mPowerMode = PowerMode.ACTIVE;
+        mRadioUsage.setMode(PowerMode.ACTIVE);
+        mResetPending = true;
+        mCommandPipeline = commandPipeline;
+    }
+
+    public void detach() {
+        mCommandPipeline = null;
+    }
+
+    public CommandPipeline getCommandPipeline() {
+        return mCommandPipeline;
+    }
+
+    /** Whether a connected pipeline is attached, without locking. */
+    public boolean isAttached() {
+        return mCommandPipeline != null;
+    }
+
+    /**
+     * Compresses the control frames sent on the current link, or sends them plain when null.
+     * Reset by {@link #attach(CommandPipeline, long)}.
+     */
+    public void setCompressor(CommandCompressor compressor) {
+        mCompressor = compressor;
+    }
+
+    public CommandCompressor getCompressor() {
+        return mCompressor;
+    }
+
+    /** Bytes of the control frames, had they been sent in the plain text format. */
+    public ThroughputMeter getPlainThroughput() {
+        return mPlainThroughput;
+    }
+
+    /** Bytes of the control frames as actually submitted. */
+    public ThroughputMeter getSentThroughput() {
+        return mSentThroughput;
+    }
+
+    /** Current spacing of the control frames, as adapted to the link. */
+    public long getSendIntervalMs() {
+        return mSendIntervalMs;
+    }
+
+    /** Level of the link at the last evaluation of the rate controller. */
+    public LinkQuality.Level getLinkLevel() {
+        return mLinkLevel;
+    }
+
+    /**
+     * Spaces out the heartbeat of a boat left stopped with no input.
+     *
+     * @param idleTimeoutMs   time without input before going idle, 0 to never go idle.
+     * @param idleHeartbeatMs period of the heartbeat while idle.
+     */
+    public void setIdlePolicy(long idleTimeoutMs, long idleHeartbeatMs) {
+        if (idleTimeoutMs < 0 || idleTimeoutMs > 0 && idleHeartbeatMs < mHeartbeatMs) {
+            throw new IllegalArgumentException("Invalid idle policy: timeout " + idleTimeoutMs + " ms, heartbeat " + idleHeartbeatMs + " ms");
+        }
+        mIdleHeartbeatMs = idleHeartbeatMs;
+        mIdleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+    }
+
+    public PowerMode getPowerMode() {
+        return mPowerMode;
+    }
+
+    /** The power mode changes, emitted from the control thread. */
+    public Observable<PowerMode> powerModeChanges() {
+        return mPowerModeChanges;
+    }
+
+    /** Writes to the boat per minute in each power mode. */
+    public RadioUsage<PowerMode> getRadioUsage() {
+        return mRadioUsage;
+    }
+
+    public boolean isTargeted() {
+        return mTargeted;
+    }
+
+    /** Whether the channel follows the inputs, or holds the boat at the neutral values. */
+    public void setTargeted(boolean targeted, long inputNanos) {
+        if (targeted != mTargeted) {
+            mTargeted = targeted;
+            mActivityNanos = inputNanos;
+            onInput(inputNanos);
+        }
+    }
+
+    public ControlProfile getControlProfile() {
+        return mControlProfile;
+    }
+
+    /** Takes effect on the next tick, without reconnecting. */
+    public void setControlProfile(ControlProfile controlProfile) {
+        mControlProfile = controlProfile;
+    }
+
+    /** The values sent to the boat. */
+    public ControlSnapshot getSnapshot() {
+        return mTargeted ? mInputArbiter.getSnapshot() : ControlSnapshot.NEUTRAL;
+    }
+
+    /** Signals an accepted update of the inputs, to measure its latency until sent. */
+    public void onInput(long inputNanos) {
+        if (!mTargeted) {
+            return;
+        }
+        mActivityNanos = inputNanos;
+        if (mPendingInputNanos == 0) {
+            mPendingInputNanos = inputNanos;
+        }
+    }
+
+    /**
+     * Sends the current values on the next tick, without waiting for the spacing chosen for the
+     * link, e.g. on a step of a maneuver that is due now.
+     */
+    public void sendNow() {
+        if (mTargeted) {
+            mSendNow = true;
+        }
+    }
+
+    /**
+     * Stops the boat: sends the stop frame ahead of everything queued, right after the write in
+     * flight. The throttle must be zeroed in the arbiter first, so the frames following the
+     * stop do not start the boat again. May be called from any thread.
+     *
+     * @param inputNanos when the stop was requested, to measure its latency.
+     */
+    public void emergencyStop(long inputNanos) {
+        synchronized (mStopLock) {
+            CommandPipeline commandPipeline = mCommandPipeline;
+            if (commandPipeline != null) {
+                commandPipeline.submitStop(encodeStop(getSnapshot().getServo()), inputNanos);
+            }
+        }
+    }
+
+    public void sendTrim(CommandEncoder.Trim trim) {
+        CommandPipeline commandPipeline = mCommandPipeline;
+        if (commandPipeline != null) {
+            commandPipeline.submitCommand(mCommandEncoder.encodeTrim(trim));
+        }
+    }
+
+    /**
+     * Sends the control frame if it is due.
+     *
+     * @param paused true while the control frames must not be sent, e.g. in trim mode.
+     * @return the delay, in nanoseconds, before this channel needs to tick again, or
+     * {@link #IDLE} while detached or paused.
+     */
+    public long tick(boolean paused) {
+        CommandPipeline commandPipeline = mCommandPipeline;
+        if (commandPipeline == null || paused) {
+            return IDLE;
+        }
+        CommandCompressor compressor = mCompressor;
+        if (compressor != mActiveCompressor) {
+            mActiveCompressor = compressor;
+            mCommandEncoder = new CommandEncoder(compressor != null ? CommandEncoder.Format.COMPRESSED : CommandEncoder.Format.TEXT);
+            mResetPending = true;
+        }
+        if (mResetPending) {
+            mResetPending = false;
+            mCommandScheduler.reset();
+            if (compressor != null) {
+                compressor.reset();
+            }
+            mSendRateController.reset();
+            mWakeUpEndNanos = 0;
+            mCountedWrites = totalWrites(commandPipeline);
+            applySendRate(commandPipeline);
+            // The boat may have stopped meanwhile
+            mSlewThrottle = 0;
+            mThrottleRamping = false;
+        } else if (mPowerMode == PowerMode.IDLE || isWakingUp(commandPipeline)) {
+            // The low power connection interval slows the writes down, not the link
+            mLinkLevel = mSendRateController.getLevel();
+        } else if (mSendRateController.update(commandPipeline.getLinkQuality())) {
+            applySendRate(commandPipeline);
+        } else {
+            mLinkLevel = mSendRateController.getLevel();
+        }
+        long writes = totalWrites(commandPipeline);
+        mRadioUsage.record((int) (writes - mCountedWrites));
+        mCountedWrites = writes;
+        ControlProfile controlProfile = mControlProfile;
+        int inputThrottle;
+        int inputServo;
+        int throttle;
+        int servo;
+        byte[] frame;
+        // A stop must not be followed by a frame built from the values it replaced
+        synchronized (mStopLock) {
+            ControlSnapshot snapshot = getSnapshot();
+            inputThrottle = snapshot.getThrottle();
+            inputServo = snapshot.getServo();
+            int slewedThrottle = slewThrottle(controlProfile, inputThrottle);
+            updatePowerMode(commandPipeline, slewedThrottle);
+            throttle = compressor != null ? compressor.quantize(slewedThrottle) : slewedThrottle;
+            servo = compressor != null ? compressor.quantize(inputServo) : inputServo;
+            long delayNanos = mCommandScheduler.nextSendDelayNanos(throttle, servo);
+            if (delayNanos != 0 && !mSendNow) {
+                return rampDelay(delayNanos);
+            }
+            mSendNow = false;
+            frame = compressor != null
+                    ? compressor.encode(mCommandEncoder, throttle, servo, commandPipeline.hasPendingControl())
+                    : mCommandEncoder.encodeParams(throttle, servo);
+            commandPipeline.submitControl(frame);
+        }
+        mCommandScheduler.onSent(throttle, servo);
+        mPlainThroughput.record(CommandEncoder.paramsLength(inputThrottle, inputServo));
+        mSentThroughput.record(frame.length);
+        long now = mClock.nanoTime();
+        long connectStartNanos = mConnectStartNanos;
+        if (connectStartNanos != 0) {
+            mConnectStartNanos = 0;
+            mMetrics.onFirstFrame(now - connectStartNanos);
+        }
+        long inputNanos = mPendingInputNanos;
+        if (inputNanos != 0) {
+            mPendingInputNanos = 0;
+            mMetrics.onInputSubmitted(now - inputNanos);
+        }
+        return rampDelay(mCommandScheduler.nextSendDelayNanos(throttle, servo));
+    }
+
+    // A ramp starts from the current throttle and only advances by whole units
+    private int slewThrottle(ControlProfile controlProfile, int inputThrottle) {
+        long now = mClock.nanoTime();
+        long elapsedNanos = mThrottleRamping ? now - mSlewNanos : 0;
+        int throttle = controlProfile.slewThrottle(mSlewThrottle, inputThrottle, elapsedNanos);
+        if (!mThrottleRamping || throttle != mSlewThrottle) {
+            mSlewNanos = now;
+        }
+        mThrottleRamping = throttle != inputThrottle;
+        mSlewThrottle = throttle;
+        return throttle;
+    }
+
+    // While ramping, the next step is due after the minimum spacing rather than the heartbeat
+    private long rampDelay(long delayNanos) {
+        return mThrottleRamping ? Math.min(delayNanos, mCommandScheduler.getMinIntervalNanos()) : delayNanos;
+    }
+
+    // A moving boat is never idle, whatever the time since the last input
+    private void updatePowerMode(CommandPipeline commandPipeline, int throttle) {
+        long idleTimeoutNanos = mIdleTimeoutNanos;
+        PowerMode powerMode = idleTimeoutNanos > 0 && throttle == 0
+                && mClock.nanoTime() - mActivityNanos >= idleTimeoutNanos ? PowerMode.IDLE : PowerMode.ACTIVE;
+        if (powerMode != mPowerMode) {
+            mPowerMode = powerMode;
+            mRadioUsage.setMode(powerMode);
+            if (powerMode == PowerMode.ACTIVE) {
+                // Back to the full rate at once, rather than tightening from the spacing of the idle link
+                mSendRateController.reset();
+                commandPipeline.getLinkQuality().resetWrites();
+                mWakeUpEndNanos = mClock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SendRateController.DEFAULT_EVALUATION_PERIOD_MS);
+            }
+            applySendRate(commandPipeline);
+            mPowerModeChanges.onNext(powerMode);
+        }
+    }
+
+    // The writes submitted before the link is back to the high priority are slow too, they are
+    // forgotten once the switch is over
+    private boolean isWakingUp(CommandPipeline commandPipeline) {
+        if (mWakeUpEndNanos == 0) {
+            return false;
+        }
+        if (mClock.nanoTime() < mWakeUpEndNanos) {
+            return true;
+        }
+        mWakeUpEndNanos = 0;
+        mSendRateController.reset();
+        commandPipeline.getLinkQuality().resetWrites();
+        return false;
+    }
+
+    private static long totalWrites(CommandPipeline commandPipeline) {
+        return commandPipeline.getAcknowledgedThroughput().getTotalWrites()
+                + commandPipeline.getUnacknowledgedThroughput().getTotalWrites();
+    }
+
+    private void applySendRate(CommandPipeline commandPipeline) {
+        long intervalMs = mSendRateController.getIntervalMs();
+        mCommandScheduler.setIntervals(intervalMs, mPowerMode == PowerMode.IDLE ? mIdleHeartbeatMs : mHeartbeatMs);
+        commandPipeline.setControlAcknowledged(mSendRateController.isControlAcknowledged());
+        mSendIntervalMs = intervalMs;
+        mLinkLevel = mSendRateController.getLevel();
+    }
+
+    // Allocated: the encoders belong to the control thread, and stops are rare
+    private byte[] encodeStop(int servo) {
+        byte[] frame = new byte[CommandEncoder.MAX_FRAME_LENGTH];
+        int length = mCompressor != null
+                ? CommandEncoder.writeBinaryParams(frame, 0, 0, servo)
+                : CommandEncoder.writeParams(frame, 0, 0, servo);
+        return Arrays.copyOf(frame, length);
+    }
+}
@@ -0,0 +1,148 @@
+package fr.dechriste.iot.airboatcontroller.control;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency and reliability figures of the control link, kept for the whole session so
+ * phones and boats can be compared in the field.
+ *
+ * Every record method is lock-free and allocation-free.
+ */
+public final class ControlMetrics {
+    private final LatencyHistogram mInputToSubmit = new LatencyHistogram();
+    private final LatencyHistogram mWriteCompletion = new LatencyHistogram();
+    private final LatencyHistogram mTickLateness = new LatencyHistogram();
+    private final LatencyHistogram mTimeToFirstFrame = new LatencyHistogram();
+    private final LatencyHistogram mReconnect = new LatencyHistogram();
+    private final LatencyHistogram mStop = new LatencyHistogram();
+    private final AtomicLong mWritesCompleted = new AtomicLong();
+    private final AtomicLong mWritesFailed = new AtomicLong();
+    private final AtomicLong mFramesCoalesced = new AtomicLong();
+    private final AtomicLong mFramesDropped = new AtomicLong();
+    private final AtomicLong mCommandsBatched = new AtomicLong();
+
+    /** Time between a control input and the submission of the frame carrying it. */
+    public void onInputSubmitted(long latencyNanos) {
+        mInputToSubmit.record(latencyNanos);
+    }
+
+    /** How late a timed tick of the control loop ran. */
+    public void onTick(long latenessNanos) {
+        mTickLateness.record(latenessNanos);
+    }
+
+    /** Time between the start of a connection, or of the app on cold start, and its first control frame. */
+    public void onFirstFrame(long durationNanos) {
+        mTimeToFirstFrame.record(durationNanos);
+    }
+
+    /** Time between an unexpected disconnection and the connection being established again. */
+    public void onReconnected(long outageNanos) {
+        mReconnect.record(outageNanos);
+    }
+
+    /** Time between an emergency stop request and the boat acknowledging the stop frame. */
+    public void onStopAcknowledged(long latencyNanos) {
+        mStop.record(latencyNanos);
+    }
+
+    public void onWriteCompleted(long durationNanos) {
+        mWritesCompleted.incrementAndGet();
+        mWriteCompletion.record(durationNanos);
+    }
+
+    public void onWriteFailed() {
+        mWritesFailed.incrementAndGet();
+    }
+
+    public void onFrameCoalesced() {
+        mFramesCoalesced.incrementAndGet();
+    }
+
+    public void onFramesDropped(int count) {
+        mFramesDropped.addAndGet(count);
+    }
+
+    public void onCommandBatched() {
+        mCommandsBatched.incrementAndGet();
+    }
+
+    public LatencyHistogram getInputToSubmit() {
+        return mInputToSubmit;
+    }
+
+    public LatencyHistogram getWriteCompletion() {
+        return mWriteCompletion;
+    }
+
+    public LatencyHistogram getTickLateness() {
+        return mTickLateness;
+    }
+
+    public LatencyHistogram getTimeToFirstFrame() {
+        return mTimeToFirstFrame;
+    }
+
+    public LatencyHistogram getReconnect() {
+        return mReconnect;
+    }
+
+    public LatencyHistogram getStop() {
+        return mStop;
+    }
+
+    public long getWritesCompleted() {
+        return mWritesCompleted.get();
+    }
+
+    public long getWritesFailed() {
+        return mWritesFailed.get();
+    }
+
+    public long getFramesCoalesced() {
+        return mFramesCoalesced.get();
+    }
+
+    public long getFramesDropped() {
+        return mFramesDropped.get();
+    }
+
+    public long getCommandsBatched() {
+        return mCommandsBatched.get();
+    }
+
+    public void reset() {
+        mInputToSubmit.reset();
+        mWriteCompletion.reset();
+        mTickLateness.reset();
+        mTimeToFirstFrame.reset();
+        mReconnect.reset();
+        mStop.reset();
+        mWritesCompleted.set(0);
+        mWritesFailed.set(0);
+        mFramesCoalesced.set(0);
+        mFramesDropped.set(0);
+        mCommandsBatched.set(0);
+    }
+
+    /** Formats a snapshot of the metrics, one figure per line. */
+    public void appendTo(StringBuilder builder) {
+        builder.append("input->submit ");
+        mInputToSubmit.appendTo(builder);
+        builder.append("\nwrite         ");
+        mWriteCompletion.appendTo(builder);
+        builder.append("\ntick late     ");
+        mTickLateness.appendTo(builder);
+        builder.append("\nfirst frame   ");
+        mTimeToFirstFrame.appendTo(builder);
+        builder.append("\nreconnect     ");
+        mReconnect.appendTo(builder);
+        builder.append("\nstop          ");
+        mStop.appendTo(builder);
+        builder.append("\nwrites ok=").append(getWritesCompleted())
+                .append(" failed=").append(getWritesFailed())
+                .append(" coalesced=").append(getFramesCoalesced())
+                .append(" dropped=").append(getFramesDropped())
+                .append(" batched=").append(getCommandsBatched());
+    }
+}
@@ -0,0 +1,163 @@
+package fr.dechriste.iot.airboatcontroller.control;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How the stick positions translate into control values.
+ *
+ * A profile combines a deadzone, an expo curve and the throttle and servo limits into lookup
+ * tables built once, so mapping an input on the input thread is a single array read with no
+ * floating-point math. The inputs are linear control values in [-100, 100]: the strength of
+ * a touch joystick, or a gamepad axis through {@link AxisMapper#toControlValue(float)}. The
+ * gamepad buttons step the throttle and jump to presets set by the profile too.
+ *
+ * The throttle slew rate is applied by the control channel when sending: a rising throttle
+ * goes up by at most that many units per second, a falling one drops at once.
+ */
+public enum ControlProfile {
+    /** Wide deadzone, soft curve, half power and a gentle acceleration. */
+    BEGINNER(10, 50, 50, 30, 80, 100, 5, 10),
+    /** Linear and full range, with no acceleration limit: the original mapping. */
+    RACE(0, 0, 100, 100, 100, 0, 10, 10),
+    /** Fine control at low speed to come alongside. */
+    DOCKING(5, 70, 30, 30, 100, 60, 5, 10);
+
+    /** Slew rate of a profile not limiting the acceleration. */
+    public static final int NO_SLEW_LIMIT = 0;
+
+    private static final int RANGE = CommandEncoder.MAX_VALUE - CommandEncoder.MIN_VALUE + 1;
+
+    private final int mDeadzone;
+    private final int mExpoPercent;
+    private final int mMaxForward;
+    private final int mMaxReverse;
+    private final int mMaxServo;
+    private final int mThrottleSlewPerSecond;
+    private final int mThrottleStep;
+    private final int mCruiseThrottle;
+    // Indexed by the linear value minus MIN_VALUE
+    private final int[] mThrottleTable = new int[RANGE];
+    private final int[] mServoTable = new int[RANGE];
+
+    /**
+     * @param deadzone              linear values up to this one map to 0, the rest of the stick
+     *                              covers the whole output range.
+     * @param expoPercent           0 for a linear response, up to 100 for a cubic one, finer
+     *                              around the center.
+     * @param throttleSlewPerSecond rise of the throttle per second, {@link #NO_SLEW_LIMIT} for none.
+     */
+    ControlProfile(int deadzone, int expoPercent, int maxForward, int maxReverse, int maxServo,
+                   int throttleSlewPerSecond, int throttleStep, int cruiseThrottle) {
+        mDeadzone = deadzone;
+        mExpoPercent = expoPercent;
+        mMaxForward = maxForward;
+        mMaxReverse = maxReverse;
+        mMaxServo = maxServo;
+        mThrottleSlewPerSecond = throttleSlewPerSecond;
+        mThrottleStep = throttleStep;
+        mCruiseThrottle = cruiseThrottle;
+        for (int i = 0; i < RANGE; i++) {
+            int linear = i + CommandEncoder.MIN_VALUE;
+            mThrottleTable[i] = curve(linear, deadzone, expoPercent, linear >= 0 ? maxForward : maxReverse);
+            mServoTable[i] = curve(linear, deadzone, expoPercent, maxServo);
+        }
+    }
+
+    /**
+     * Computes the response curve of a linear value, as stored in the tables.
+     *
+     * @param limit largest magnitude of the result.
+     */
+    public static int curve(int linear, int deadzone, int expoPercent, int limit) {
+        int magnitude = Math.min(Math.abs(linear), CommandEncoder.MAX_VALUE);
+        if (magnitude <= deadzone) {
+            return 0;
+        }
+        float x = (magnitude - deadzone) / (float) (CommandEncoder.MAX_VALUE - deadzone);
+        float expo = expoPercent / 100f;
+        float y = (1 - expo) * x + expo * x * x * x;
+        // Past the deadzone the boat moves, even when the curve rounds down to 0
+        int value = Math.max(1, Math.round(y * limit));
+        return linear < 0 ? -value : value;
+    }
+
+    public int mapThrottle(int linear) {
+        return mThrottleTable[index(linear)];
+    }
+
+    public int mapServo(int linear) {
+        return mServoTable[index(linear)];
+    }
+
+    private static int index(int linear) {
+        if (linear <= CommandEncoder.MIN_VALUE) {
+            return 0;
+        }
+        if (linear >= CommandEncoder.MAX_VALUE) {
+            return RANGE - 1;
+        }
+        return linear - CommandEncoder.MIN_VALUE;
+    }
+
+    /** Keeps a throttle set directly, e.g. by a button, within the limits of the profile. */
+    public int clampThrottle(int throttle) {
+        return Math.max(-mMaxReverse, Math.min(mMaxForward, throttle));
+    }
+
+    public int clampServo(int servo) {
+        return Math.max(mServoTable[0], Math.min(mServoTable[RANGE - 1], servo));
+    }
+
+    public int getDeadzone() {
+        return mDeadzone;
+    }
+
+    public int getExpoPercent() {
+        return mExpoPercent;
+    }
+
+    public int getMaxForward() {
+        return mMaxForward;
+    }
+
+    public int getMaxReverse() {
+        return mMaxReverse;
+    }
+
+    public int getMaxServo() {
+        return mMaxServo;
+    }
+
+    /** Throttle change of the throttle up and down buttons. */
+    public int getThrottleStep() {
+        return mThrottleStep;
+    }
+
+    /** Throttle of the cruise button. The full throttle button goes to {@link #getMaxForward()}. */
+    public int getCruiseThrottle() {
+        return mCruiseThrottle;
+    }
+
+    public int getThrottleSlewPerSecond() {
+        return mThrottleSlewPerSecond;
+    }
+
+    /**
+     * Limits the rise of the throttle since the last value sent, with integer math only.
+     *
+     * @param elapsedNanos time since the last value was sent.
+     */
+    public int slewThrottle(int last, int target, long elapsedNanos) {
+        if (mThrottleSlewPerSecond == NO_SLEW_LIMIT || Math.abs(target) <= Math.abs(last) && (target ^ last) >= 0) {
+            // Slowing down, or no limit
+            return target;
+        }
+        // Reversing goes through 0 at once, then accelerates
+        int from = (target ^ last) >= 0 ? last : 0;
+        long maxStep = elapsedNanos * mThrottleSlewPerSecond / TimeUnit.SECONDS.toNanos(1);
+        if (Math.abs(target - from) <= maxStep) {
+            return target;
+        }
+        return target > from ? from + (int) maxStep : from - (int) maxStep;
+    }
+}
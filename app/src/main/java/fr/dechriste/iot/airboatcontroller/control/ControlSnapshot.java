@@ -0,0 +1,68 @@
+package fr.dechriste.iot.airboatcontroller.control;
+
+/**
+ * The control values at one point in time, with the input source that set them.
+ *
+ * Immutable, so a reader always gets a throttle and a servo that were set together. The
+ * sequence number grows with every accepted update.
+ */
+public final class ControlSnapshot {
+    public enum Source {
+        /** Nothing set the values yet. */
+        NONE,
+        /** The on-screen joysticks. */
+        TOUCH,
+        /** The sticks and buttons of a game controller. */
+        GAMEPAD,
+        /** The app itself, e.g. an emergency stop. Always accepted. */
+        SYSTEM
+    }
+
+    public static final ControlSnapshot NEUTRAL = new ControlSnapshot(0, 0, Source.NONE, 0);
+
+    private final int mThrottle;
+    private final int mServo;
+    private final Source mSource;
+    private final long mSequence;
+
+    private ControlSnapshot(int throttle, int servo, Source source, long sequence) {
+        mThrottle = throttle;
+        mServo = servo;
+        mSource = source;
+        mSequence = sequence;
+    }
+
+    public int getThrottle() {
+        return mThrottle;
+    }
+
+    public int getServo() {
+        return mServo;
+    }
+
+    public Source getSource() {
+        return mSource;
+    }
+
+    public long getSequence() {
+        return mSequence;
+    }
+
+    /** The snapshot following this one, with these values. */
+    public ControlSnapshot next(int throttle, int servo, Source source) {
+        return new ControlSnapshot(throttle, servo, source, mSequence + 1);
+    }
+
+    public ControlSnapshot withThrottle(int throttle, Source source) {
+        return next(throttle, mServo, source);
+    }
+
+    public ControlSnapshot withServo(int servo, Source source) {
+        return next(mThrottle, servo, source);
+    }
+
+    @Override
+    public String toString() {
+        return mThrottle + ";" + mServo + " " + mSource + " #" + mSequence;
+    }
+}
@@ -0,0 +1,62 @@
+package fr.dechriste.iot.airboatcontroller.control;
+
+/**
+ * Which boats of a fleet receive the control inputs: all of them, a group, or a single boat.
+ */
+public final class ControlTarget {
+    public static final int NO_GROUP = 0;
+    public static final ControlTarget ALL = new ControlTarget(null, NO_GROUP);
+
+    private final String mAddress;
+    private final int mGroup;
+
+    private ControlTarget(String address, int group) {
+        mAddress = address;
+        mGroup = group;
+    }
+
+    public static ControlTarget boat(String address) {
+        return new ControlTarget(address, NO_GROUP);
+    }
+
+    public static ControlTarget group(int group) {
+        if (group == NO_GROUP) {
+            throw new IllegalArgumentException("Invalid group " + group);
+        }
+        return new ControlTarget(null, group);
+    }
+
+    /** The targeted boat, null when the target is not a single boat. */
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public int getGroup() {
+        return mGroup;
+    }
+
+    public boolean isAll() {
+        return mAddress == null && mGroup == NO_GROUP;
+    }
+
+    public boolean matches(ControlChannel channel) {
+        if (mAddress != null) {
+            return mAddress.equals(channel.getAddress());
+        }
+        return mGroup == NO_GROUP || mGroup == channel.getGroup();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ControlTarget)) {
+            return false;
+        }
+        ControlTarget other = (ControlTarget) o;
+        return mGroup == other.mGroup && (mAddress == null ? other.mAddress == null : mAddress.equals(other.mAddress));
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (mAddress != null ? mAddress.hashCode() : 0) + mGroup;
+    }
+}
@@ -0,0 +1,85 @@
+package fr.dechriste.iot.airboatcontroller.control;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory ring buffer of typed events for the hot paths.
+ *
+ * Recording stores a timestamp, a type and two ints in preallocated arrays: nothing is
+ * formatted nor boxed until the log is dumped. When full, the oldest events are overwritten.
+ * Concurrent writers get distinct slots; a dump running at the same time may show a
+ * partially overwritten event, which is acceptable for diagnostics.
+ */
+public final class EventLog {
+    public enum Type {
+        JOYSTICK_LEFT,
+        JOYSTICK_RIGHT,
+        GAMEPAD_AXES,
+        GAMEPAD_KEY,
+        TRIM,
+        CONNECTED,
+        DISCONNECTED,
+        WRITE_FAILED,
+        TELEMETRY,
+        EMERGENCY_STOP
+    }
+
+    private static final Type[] TYPES = Type.values();
+
+    private final Clock mClock;
+    private final int mMask;
+    private final long[] mTimes;
+    private final byte[] mTypes;
+    private final int[] mFirstValues;
+    private final int[] mSecondValues;
+    private final AtomicLong mNextIndex = new AtomicLong();
+
+    /**
+     * @param capacity rounded up to a power of two.
+     */
+    public EventLog(Clock clock, int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        mClock = clock;
+        mMask = size - 1;
+        mTimes = new long[size];
+        mTypes = new byte[size];
+        mFirstValues = new int[size];
+        mSecondValues = new int[size];
+    }
+
+    public void record(Type type, int first, int second) {
+        int slot = (int) (mNextIndex.getAndIncrement() & mMask);
+        mTimes[slot] = mClock.nanoTime();
+        mTypes[slot] = (byte) type.ordinal();
+        mFirstValues[slot] = first;
+        mSecondValues[slot] = second;
+    }
+
+    public void record(Type type) {
+        record(type, 0, 0);
+    }
+
+    public int getCapacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * Writes the retained events, oldest first, one per line:
+     * {@code <ms before the dump> <type> <first> <second>}.
+     */
+    public void dump(Appendable out) throws IOException {
+        long now = mClock.nanoTime();
+        long end = mNextIndex.get();
+        long start = Math.max(0, end - getCapacity());
+        for (long i = start; i < end; i++) {
+            int slot = (int) (i & mMask);
+            out.append('-').append(Long.toString(TimeUnit.NANOSECONDS.toMillis(now - mTimes[slot])))
+                    .append("ms ").append(TYPES[mTypes[slot]].name())
+                    .append(' ').append(Integer.toString(mFirstValues[slot]))
+                    .append(' ').append(Integer.toString(mSecondValues[slot]))
+                    .append('\n');
+        }
+    }
+}
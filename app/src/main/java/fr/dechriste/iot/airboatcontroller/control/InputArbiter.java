@@ -0,0 +1,101 @@
+package fr.dechriste.iot.airboatcontroller.control;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Owns the current {@link ControlSnapshot} and decides which input source may change it.
+ *
+ * Updates are compare-and-set: an update computing the new values from the current ones, such
+ * as reversing the throttle, is applied again on the newer snapshot when another thread won
+ * the race, so no update is lost and no lock is taken. With
+ * {@link Policy#GAMEPAD_PRIORITY}, the touch inputs are ignored while the game controller was
+ * used within the hold time.
+ */
+public final class InputArbiter {
+    public static final long DEFAULT_GAMEPAD_HOLD_MS = 1000;
+
+    public enum Policy {
+        /** The source used last wins. */
+        LAST_ACTIVE,
+        /** The game controller overrides the touch inputs while in use. */
+        GAMEPAD_PRIORITY
+    }
+
+    /** Computes the next snapshot from the current one. May be called more than once. */
+    public interface Update {
+        ControlSnapshot apply(ControlSnapshot current);
+    }
+
+    private final Clock mClock;
+    private final long mGamepadHoldNanos;
+    private final AtomicReference<ControlSnapshot> mSnapshot = new AtomicReference<>(ControlSnapshot.NEUTRAL);
+    private final AtomicLong mRejected = new AtomicLong();
+    private volatile Policy mPolicy = Policy.LAST_ACTIVE;
+    // Last input of the game controller, 0 when none
+    private volatile long mGamepadNanos;
+
+    public InputArbiter(Clock clock) {
+        this(clock, DEFAULT_GAMEPAD_HOLD_MS);
+    }
+
+    public InputArbiter(Clock clock, long gamepadHoldMs) {
+        mClock = clock;
+        mGamepadHoldNanos = TimeUnit.MILLISECONDS.toNanos(gamepadHoldMs);
+    }
+
+    public Policy getPolicy() {
+        return mPolicy;
+    }
+
+    public void setPolicy(Policy policy) {
+        mPolicy = policy;
+    }
+
+    public ControlSnapshot getSnapshot() {
+        return mSnapshot.get();
+    }
+
+    /** Updates ignored because of the policy. */
+    public long getRejectedCount() {
+        return mRejected.get();
+    }
+
+    public ControlSnapshot setThrottle(ControlSnapshot.Source source, int throttle) {
+        return submit(source, current -> current.withThrottle(throttle, source));
+    }
+
+    public ControlSnapshot setServo(ControlSnapshot.Source source, int servo) {
+        return submit(source, current -> current.withServo(servo, source));
+    }
+
+    public ControlSnapshot set(ControlSnapshot.Source source, int throttle, int servo) {
+        return submit(source, current -> current.next(throttle, servo, source));
+    }
+
+    /**
+     * Applies the update unless the policy rejects the source.
+     *
+     * @return the snapshot published, or null when rejected.
+     */
+    public ControlSnapshot submit(ControlSnapshot.Source source, Update update) {
+        long now = mClock.nanoTime();
+        if (source == ControlSnapshot.Source.GAMEPAD) {
+            mGamepadNanos = now;
+        } else if (source == ControlSnapshot.Source.TOUCH && mPolicy == Policy.GAMEPAD_PRIORITY) {
+            long gamepadNanos = mGamepadNanos;
+            if (gamepadNanos != 0 && now - gamepadNanos < mGamepadHoldNanos) {
+                mRejected.incrementAndGet();
+                return null;
+            }
+        }
+        while (true) {
+            ControlSnapshot current = mSnapshot.get();
+            ControlSnapshot next = update.apply(current);
+            if (next == current || mSnapshot.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+}
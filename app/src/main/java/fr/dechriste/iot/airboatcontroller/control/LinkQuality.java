@@ -0,0 +1,103 @@
+package fr.dechriste.iot.airboatcontroller.control;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Health of one link, from the signal strength sampled by the connection and the outcome of
+ * the writes of its pipeline.
+ *
+ * The figures are exponentially weighted averages, so a few lost packets move them but a
+ * single one does not. Unacknowledged writes only report the local stack accepting them:
+ * while the control frames are written without response, the signal strength is what tells
+ * the link is degrading.
+ */
+public final class LinkQuality {
+    /** Signal strength reported until the first sample. */
+    public static final int UNKNOWN_RSSI = 0;
+    public static final int GOOD_RSSI = -75;
+    public static final int POOR_RSSI = -88;
+    public static final float GOOD_SUCCESS_RATE = 0.98f;
+    public static final float POOR_SUCCESS_RATE = 0.9f;
+
+    public enum Level {
+        /** Room to send more often, without waiting for the responses. */
+        GOOD,
+        /** Usable, keep the current cadence. */
+        FAIR,
+        /** Writes failing, too slow or at the edge of range: back off. */
+        POOR
+    }
+
+    // Weight of a new write outcome, and of a new signal strength sample
+    private static final float WRITE_WEIGHT = 1 / 16f;
+    private static final float RSSI_WEIGHT = 1 / 4f;
+
+    private float mRssi = UNKNOWN_RSSI;
+    private float mSuccessRate = 1;
+    private float mWriteNanos;
+    private long mWrites;
+
+    public synchronized void onRssi(int rssi) {
+        mRssi = mRssi == UNKNOWN_RSSI ? rssi : mRssi + (rssi - mRssi) * RSSI_WEIGHT;
+    }
+
+    public synchronized void onWriteCompleted(long durationNanos) {
+        mSuccessRate += (1 - mSuccessRate) * WRITE_WEIGHT;
+        mWriteNanos = mWrites == 0 ? durationNanos : mWriteNanos + (durationNanos - mWriteNanos) * WRITE_WEIGHT;
+        mWrites++;
+    }
+
+    public synchronized void onWriteFailed() {
+        mSuccessRate -= mSuccessRate * WRITE_WEIGHT;
+        mWrites++;
+    }
+
+    /** Forgets the outcome of the writes, slowed down on purpose until then. The signal strength is kept. */
+    public synchronized void resetWrites() {
+        mSuccessRate = 1;
+        mWriteNanos = 0;
+        mWrites = 0;
+    }
+
+    /** Averaged signal strength in dBm, {@link #UNKNOWN_RSSI} until sampled. */
+    public synchronized int getRssi() {
+        return Math.round(mRssi);
+    }
+
+    /** Averaged ratio of the writes that succeeded, 1 until a write fails. */
+    public synchronized float getSuccessRate() {
+        return mSuccessRate;
+    }
+
+    /** Averaged duration of the successful writes. */
+    public synchronized long getWriteNanos() {
+        return (long) mWriteNanos;
+    }
+
+    public synchronized long getWrites() {
+        return mWrites;
+    }
+
+    /**
+     * @param sendIntervalNanos the current spacing of the control frames: a link whose writes
+     *                          take longer cannot keep up with it.
+     */
+    public synchronized Level getLevel(long sendIntervalNanos) {
+        boolean rssiKnown = mRssi != UNKNOWN_RSSI;
+        if (mSuccessRate < POOR_SUCCESS_RATE || (rssiKnown && mRssi < POOR_RSSI) || mWriteNanos > sendIntervalNanos) {
+            return Level.POOR;
+        }
+        if (mSuccessRate >= GOOD_SUCCESS_RATE && (!rssiKnown || mRssi >= GOOD_RSSI) && mWriteNanos <= sendIntervalNanos * 3 / 4) {
+            return Level.GOOD;
+        }
+        return Level.FAIR;
+    }
+
+    public synchronized void appendTo(StringBuilder builder) {
+        if (mRssi != UNKNOWN_RSSI) {
+            builder.append(Math.round(mRssi)).append(" dBm ");
+        }
+        builder.append(Math.round(mSuccessRate * 100)).append("% ok ")
+                .append(TimeUnit.NANOSECONDS.toMillis((long) mWriteNanos)).append(" ms");
+    }
+}
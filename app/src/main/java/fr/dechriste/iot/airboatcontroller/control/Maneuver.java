@@ -0,0 +1,152 @@
+package fr.dechriste.iot.airboatcontroller.control;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A timed sequence of control values, run by a {@link ManeuverSequencer}.
+ *
+ * The script lists the steps separated by commas or new lines, each one the throttle and the
+ * servo to hold, as sent in the frames, and for how long in {@code s} or {@code ms}:
+ * {@code 60;0 3s, 0;-100 1.5s}. The boat is stopped when the last step ends. A step lasts
+ * at most {@link #MAX_STEP_DURATION_MS}, and the whole maneuver {@link #MAX_DURATION_MS}.
+ */
+public final class Maneuver {
+    public static final long MAX_STEP_DURATION_MS = 60_000;
+    public static final long MAX_DURATION_MS = 600_000;
+
+    public static final class Step {
+        final int mThrottle;
+        final int mServo;
+        final long mDurationNanos;
+
+        Step(int throttle, int servo, long durationNanos) {
+            mThrottle = throttle;
+            mServo = servo;
+            mDurationNanos = durationNanos;
+        }
+
+        public int getThrottle() {
+            return mThrottle;
+        }
+
+        public int getServo() {
+            return mServo;
+        }
+
+        public long getDurationNanos() {
+            return mDurationNanos;
+        }
+
+        @Override
+        public String toString() {
+            return mThrottle + ";" + mServo + " " + TimeUnit.NANOSECONDS.toMillis(mDurationNanos) + "ms";
+        }
+    }
+
+    private final List<Step> mSteps;
+
+    private Maneuver(List<Step> steps) {
+        mSteps = Collections.unmodifiableList(steps);
+    }
+
+    /**
+     * @throws IllegalArgumentException when the script is empty, a step is invalid or the
+     *                                  maneuver is too long.
+     */
+    public static Maneuver parse(String script) {
+        List<Step> steps = new ArrayList<>();
+        long durationNanos = 0;
+        for (String line : script.split("[,\n]")) {
+            String step = line.trim();
+            if (!step.isEmpty()) {
+                Step parsed = parseStep(step, steps.size() + 1);
+                steps.add(parsed);
+                // Each step is capped, so the sum cannot overflow before this check fails
+                durationNanos += parsed.mDurationNanos;
+                if (durationNanos > TimeUnit.MILLISECONDS.toNanos(MAX_DURATION_MS)) {
+                    throw new IllegalArgumentException("The maneuver lasts more than " + MAX_DURATION_MS / 1000 + " s");
+                }
+            }
+        }
+        if (steps.isEmpty()) {
+            throw new IllegalArgumentException("No step in the maneuver");
+        }
+        return new Maneuver(steps);
+    }
+
+    private static Step parseStep(String step, int number) {
+        String[] parts = step.split("\\s+");
+        int separator = parts[0].indexOf(';');
+        if (parts.length != 2 || separator < 0) {
+            throw new IllegalArgumentException("Step " + number + " is not 'throttle;servo duration': " + step);
+        }
+        int throttle = parseValue(parts[0].substring(0, separator), number);
+        int servo = parseValue(parts[0].substring(separator + 1), number);
+        String duration = parts[1];
+        long unitNanos;
+        if (duration.endsWith("ms")) {
+            unitNanos = TimeUnit.MILLISECONDS.toNanos(1);
+            duration = duration.substring(0, duration.length() - 2);
+        } else if (duration.endsWith("s")) {
+            unitNanos = TimeUnit.SECONDS.toNanos(1);
+            duration = duration.substring(0, duration.length() - 1);
+        } else {
+            throw new IllegalArgumentException("Step " + number + " has no duration unit: " + parts[1]);
+        }
+        double durationNanos;
+        try {
+            durationNanos = Double.parseDouble(duration) * unitNanos;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Step " + number + " has an invalid duration: " + parts[1], e);
+        }
+        // Written as negations so NaN fails too, and the infinities fail one of them
+        if (!(durationNanos >= 1)) {
+            throw new IllegalArgumentException("Step " + number + " has an invalid duration: " + parts[1]);
+        }
+        if (!(durationNanos <= TimeUnit.MILLISECONDS.toNanos(MAX_STEP_DURATION_MS))) {
+            throw new IllegalArgumentException("Step " + number + " lasts more than " + MAX_STEP_DURATION_MS / 1000 + " s: " + parts[1]);
+        }
+        return new Step(throttle, servo, Math.round(durationNanos));
+    }
+
+    private static int parseValue(String value, int number) {
+        int parsed;
+        try {
+            parsed = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Step " + number + " has an invalid value: " + value, e);
+        }
+        if (parsed < CommandEncoder.MIN_VALUE || parsed > CommandEncoder.MAX_VALUE) {
+            throw new IllegalArgumentException("Step " + number + " has a value out of range: " + value);
+        }
+        return parsed;
+    }
+
+    public List<Step> getSteps() {
+        return mSteps;
+    }
+
+    /** Time from the start to the final stop. */
+    public long getDurationNanos() {
+        long durationNanos = 0;
+        for (Step step : mSteps) {
+            durationNanos += step.mDurationNanos;
+        }
+        return durationNanos;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Step step : mSteps) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(step);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,183 @@
+package fr.dechriste.iot.airboatcontroller.control;
+
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Observable;
+import io.reactivex.subjects.PublishSubject;
+import io.reactivex.subjects.Subject;
+
+/**
+ * Runs a {@link Maneuver} on an absolute timeline.
+ *
+ * Every step is due at the start time plus the durations of the steps before it, so a late
+ * tick delays that step alone and the error never adds up. A step applied later than the
+ * tolerance is reported as a missed deadline; a step whose window is over by the time it is
+ * due is skipped rather than shifting the rest of the maneuver. {@link #tick()} must be called
+ * from a single thread, at the delay it returns; {@link #abort()} may be called from any.
+ */
+public final class ManeuverSequencer {
+    public static final long DEFAULT_TOLERANCE_MS = 10;
+    /** Returned by {@link #tick()} while no maneuver runs. */
+    public static final long IDLE = Long.MAX_VALUE;
+
+    /**
+     * Where the control values of the steps go. The lateness is measured when a step is applied,
+     * so the values must be sent right away, not at the next slot of the link.
+     */
+    public interface Output {
+        void apply(int throttle, int servo);
+    }
+
+    public static final class Event {
+        public enum Type {
+            /** A step was applied, the final stop included. */
+            STEP,
+            /** A step was applied past the tolerance, or skipped. */
+            DEADLINE_MISSED,
+            FINISHED,
+            /** Stopped before the end, the boat must be stopped by the caller. */
+            ABORTED
+        }
+
+        final Type mType;
+        final int mStep;
+        final long mLatenessNanos;
+
+        Event(Type type, int step, long latenessNanos) {
+            mType = type;
+            mStep = step;
+            mLatenessNanos = latenessNanos;
+        }
+
+        public Type getType() {
+            return mType;
+        }
+
+        /** Index of the step, the number of steps for the final stop. */
+        public int getStep() {
+            return mStep;
+        }
+
+        /**
+         * Time between the deadline of the step and the tick applying it, the largest one of
+         * the maneuver when finished.
+         */
+        public long getLatenessNanos() {
+            return mLatenessNanos;
+        }
+
+        @Override
+        public String toString() {
+            return mType + " #" + mStep + " +" + mLatenessNanos / 1000 + " us";
+        }
+    }
+
+    private final Clock mClock;
+    private final Output mOutput;
+    private final long mToleranceNanos;
+    private final Subject<Event> mEvents = PublishSubject.<Event>create().toSerialized();
+
+    private Maneuver mManeuver;
+    // Due time of each step, then of the final stop
+    private long[] mDeadlines;
+    private int mNext;
+    private int mMissedDeadlines;
+    private long mMaxLatenessNanos;
+
+    public ManeuverSequencer(Clock clock, Output output) {
+        this(clock, output, DEFAULT_TOLERANCE_MS);
+    }
+
+    public ManeuverSequencer(Clock clock, Output output, long toleranceMs) {
+        mClock = clock;
+        mOutput = output;
+        mToleranceNanos = TimeUnit.MILLISECONDS.toNanos(toleranceMs);
+    }
+
+    /** Starts the maneuver now, aborting the one running. The first step is due on the next tick. */
+    public synchronized void start(Maneuver maneuver) {
+        abort();
+        int count = maneuver.getSteps().size();
+        long[] deadlines = new long[count + 1];
+        deadlines[0] = mClock.nanoTime();
+        for (int i = 0; i < count; i++) {
+            deadlines[i + 1] = deadlines[i] + maneuver.getSteps().get(i).getDurationNanos();
+        }
+        mManeuver = maneuver;
+        mDeadlines = deadlines;
+        mNext = 0;
+        mMissedDeadlines = 0;
+        mMaxLatenessNanos = 0;
+    }
+
+    public synchronized boolean isRunning() {
+        return mManeuver != null;
+    }
+
+    /**
+     * Stops the maneuver, no step is applied past this call.
+     *
+     * @return false when none was running.
+     */
+    public synchronized boolean abort() {
+        if (mManeuver == null) {
+            return false;
+        }
+        mManeuver = null;
+        mEvents.onNext(new Event(Event.Type.ABORTED, mNext, 0));
+        return true;
+    }
+
+    /**
+     * Applies the steps that are due.
+     *
+     * @return the delay, in nanoseconds, before the next step is due, or {@link #IDLE}.
+     */
+    public synchronized long tick() {
+        if (mManeuver == null) {
+            return IDLE;
+        }
+        long now = mClock.nanoTime();
+        int count = mManeuver.getSteps().size();
+        while (mNext <= count && now >= mDeadlines[mNext]) {
+            long latenessNanos = now - mDeadlines[mNext];
+            boolean skipped = mNext < count && now >= mDeadlines[mNext + 1];
+            if (skipped || latenessNanos > mToleranceNanos) {
+                mMissedDeadlines++;
+                mEvents.onNext(new Event(Event.Type.DEADLINE_MISSED, mNext, latenessNanos));
+            }
+            if (!skipped) {
+                if (mNext < count) {
+                    Maneuver.Step step = mManeuver.getSteps().get(mNext);
+                    mOutput.apply(step.getThrottle(), step.getServo());
+                } else {
+                    mOutput.apply(0, 0);
+                }
+                mMaxLatenessNanos = Math.max(mMaxLatenessNanos, latenessNanos);
+                mEvents.onNext(new Event(Event.Type.STEP, mNext, latenessNanos));
+            }
+            mNext++;
+        }
+        if (mNext > count) {
+            mManeuver = null;
+            mEvents.onNext(new Event(Event.Type.FINISHED, count, mMaxLatenessNanos));
+            return IDLE;
+        }
+        return mDeadlines[mNext] - now;
+    }
+
+    /** The steps applied and the end of the maneuvers, emitted from the thread ticking or aborting. */
+    public Observable<Event> events() {
+        return mEvents;
+    }
+
+    /** Deadlines missed by the current or last maneuver. */
+    public synchronized int getMissedDeadlines() {
+        return mMissedDeadlines;
+    }
+
+    /** Largest lateness of the steps applied by the current or last maneuver. */
+    public synchronized long getMaxLatenessNanos() {
+        return mMaxLatenessNanos;
+    }
+}
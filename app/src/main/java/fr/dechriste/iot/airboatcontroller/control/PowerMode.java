@@ -0,0 +1,14 @@
+package fr.dechriste.iot.airboatcontroller.control;
+
+/**
+ * Radio budget of a boat connection.
+ */
+public enum PowerMode {
+    /** High connection priority, heartbeat at the normal period. */
+    ACTIVE,
+    /**
+     * The boat sat stopped with no input for a while: low power connection priority and a
+     * sparse heartbeat, until the next input.
+     */
+    IDLE
+}
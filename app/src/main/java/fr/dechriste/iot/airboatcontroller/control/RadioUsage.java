@@ -0,0 +1,69 @@
+package fr.dechriste.iot.airboatcontroller.control;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts the radio operations done in each mode, and the time spent in it, so the cost of the
+ * modes can be compared as operations per minute.
+ *
+ * @param <M> the modes, e.g. {@link PowerMode}.
+ */
+public final class RadioUsage<M extends Enum<M>> {
+    private final Clock mClock;
+    private final M[] mModes;
+    private final long[] mOperations;
+    private final long[] mNanos;
+    private M mMode;
+    private long mModeStartNanos;
+
+    public RadioUsage(Class<M> modes, M initialMode, Clock clock) {
+        mClock = clock;
+        mModes = modes.getEnumConstants();
+        mOperations = new long[mModes.length];
+        mNanos = new long[mModes.length];
+        mMode = initialMode;
+        mModeStartNanos = clock.nanoTime();
+    }
+
+    public synchronized M getMode() {
+        return mMode;
+    }
+
+    public synchronized void setMode(M mode) {
+        if (mode == mMode) {
+            return;
+        }
+        long now = mClock.nanoTime();
+        mNanos[mMode.ordinal()] += now - mModeStartNanos;
+        mModeStartNanos = now;
+        mMode = mode;
+    }
+
+    /** Counts operations in the current mode. */
+    public synchronized void record(int operations) {
+        mOperations[mMode.ordinal()] += operations;
+    }
+
+    public synchronized long getOperations(M mode) {
+        return mOperations[mode.ordinal()];
+    }
+
+    /** Average rate in the mode, the time spent in the current mode so far included. */
+    public synchronized float getOperationsPerMinute(M mode) {
+        long nanos = mNanos[mode.ordinal()];
+        if (mode == mMode) {
+            nanos += mClock.nanoTime() - mModeStartNanos;
+        }
+        return nanos > 0 ? mOperations[mode.ordinal()] * (float) TimeUnit.MINUTES.toNanos(1) / nanos : 0;
+    }
+
+    /** Formats the rate of every mode, e.g. {@code ACTIVE 1200/min IDLE 30/min}. */
+    public synchronized void appendTo(StringBuilder builder) {
+        for (int i = 0; i < mModes.length; i++) {
+            if (i > 0) {
+                builder.append(' ');
+            }
+            builder.append(mModes[i]).append(' ').append(Math.round(getOperationsPerMinute(mModes[i]))).append("/min");
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package fr.dechriste.iot.airboatcontroller.control;
+
+/**
+ * Exponential backoff between reconnection attempts, capped so a boat coming back in range
+ * is picked up quickly.
+ */
+public final class ReconnectPolicy {
+    public static final long DEFAULT_INITIAL_DELAY_MS = 250;
+    public static final long DEFAULT_MAX_DELAY_MS = 5_000;
+
+    private final long mInitialDelayMs;
+    private final long mMaxDelayMs;
+    private int mAttempts;
+
+    public ReconnectPolicy() {
+        this(DEFAULT_INITIAL_DELAY_MS, DEFAULT_MAX_DELAY_MS);
+    }
+
+    public ReconnectPolicy(long initialDelayMs, long maxDelayMs) {
+        mInitialDelayMs = initialDelayMs;
+        mMaxDelayMs = maxDelayMs;
+    }
+
+    /** Returns the delay before the next attempt and counts it. */
+    public long nextDelayMs() {
+        int shift = Math.min(mAttempts, 20);
+        mAttempts++;
+        return Math.min(mMaxDelayMs, mInitialDelayMs << shift);
+    }
+
+    public int getAttempts() {
+        return mAttempts;
+    }
+
+    /** Called once connected, so the next drop starts again with the initial delay. */
+    public void reset() {
+        mAttempts = 0;
+    }
+}
@@ -0,0 +1,111 @@
+package fr.dechriste.iot.airboatcontroller.control;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adapts the spacing of the control frames, and whether they wait for the write response,
+ * to the {@link LinkQuality} of the link.
+ *
+ * The link is evaluated once per evaluation period. A poor link doubles the spacing, up to the
+ * heartbeat period, and gets acknowledged writes so the losses are seen and the pipeline is
+ * paced by the boat; a fair link keeps its spacing but is acknowledged too. A good link
+ * shortens the spacing by steps, down to the configured minimum, and once it stayed good for
+ * a few periods the control frames go without response again when the transport allows it.
+ * Backing off is fast and tightening slow, so a link at the edge of range does not oscillate.
+ * Not thread-safe: use it from the control thread.
+ */
+public final class SendRateController {
+    public static final long DEFAULT_EVALUATION_PERIOD_MS = 1000;
+    // Good evaluations in a row before writing the control frames without response
+    static final int GOOD_PERIODS_BEFORE_UNACKNOWLEDGED = 3;
+
+    private final Clock mClock;
+    private final long mMinIntervalNanos;
+    private final long mMaxIntervalNanos;
+    private final long mEvaluationPeriodNanos;
+
+    private long mIntervalNanos;
+    private boolean mControlAcknowledged;
+    private LinkQuality.Level mLevel;
+    private int mGoodPeriods;
+    private long mNextEvaluationNanos;
+
+    /**
+     * @param minIntervalMs spacing of the control frames on a clean link.
+     * @param maxIntervalMs spacing on a poor link, usually the heartbeat period.
+     */
+    public SendRateController(Clock clock, long minIntervalMs, long maxIntervalMs, long evaluationPeriodMs) {
+        if (minIntervalMs <= 0 || maxIntervalMs < minIntervalMs || evaluationPeriodMs <= 0) {
+            throw new IllegalArgumentException("Invalid intervals: min " + minIntervalMs + " ms, max " + maxIntervalMs
+                    + " ms, evaluation " + evaluationPeriodMs + " ms");
+        }
+        mClock = clock;
+        mMinIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minIntervalMs);
+        mMaxIntervalNanos = TimeUnit.MILLISECONDS.toNanos(maxIntervalMs);
+        mEvaluationPeriodNanos = TimeUnit.MILLISECONDS.toNanos(evaluationPeriodMs);
+        reset();
+    }
+
+    /** Starts over for a new link: minimum spacing, acknowledged writes until the link proved clean. */
+    public void reset() {
+        mIntervalNanos = mMinIntervalNanos;
+        mControlAcknowledged = true;
+        mLevel = LinkQuality.Level.FAIR;
+        mGoodPeriods = 0;
+        mNextEvaluationNanos = mClock.nanoTime() + mEvaluationPeriodNanos;
+    }
+
+    /**
+     * Evaluates the link when the evaluation period elapsed.
+     *
+     * @return true when the interval or the write mode changed.
+     */
+    public boolean update(LinkQuality linkQuality) {
+        long now = mClock.nanoTime();
+        if (now < mNextEvaluationNanos) {
+            return false;
+        }
+        mNextEvaluationNanos = now + mEvaluationPeriodNanos;
+        long intervalNanos = mIntervalNanos;
+        boolean controlAcknowledged = mControlAcknowledged;
+        mLevel = linkQuality.getLevel(intervalNanos);
+        switch (mLevel) {
+            case POOR:
+                mGoodPeriods = 0;
+                mIntervalNanos = Math.min(mMaxIntervalNanos, intervalNanos * 2);
+                mControlAcknowledged = true;
+                break;
+            case GOOD:
+                mGoodPeriods++;
+                mIntervalNanos = Math.max(mMinIntervalNanos, intervalNanos - mMinIntervalNanos);
+                if (mGoodPeriods >= GOOD_PERIODS_BEFORE_UNACKNOWLEDGED) {
+                    mControlAcknowledged = false;
+                }
+                break;
+            default:
+                // Keep the cadence, but see the losses again
+                mGoodPeriods = 0;
+                mControlAcknowledged = true;
+                break;
+        }
+        return mIntervalNanos != intervalNanos || mControlAcknowledged != controlAcknowledged;
+    }
+
+    public long getIntervalNanos() {
+        return mIntervalNanos;
+    }
+
+    public long getIntervalMs() {
+        return TimeUnit.NANOSECONDS.toMillis(mIntervalNanos);
+    }
+
+    /** Whether the control frames should wait for the write response. */
+    public boolean isControlAcknowledged() {
+        return mControlAcknowledged;
+    }
+
+    /** Level of the link at the last evaluation. */
+    public LinkQuality.Level getLevel() {
+        return mLevel;
+    }
+}
@@ -0,0 +1,44 @@
+package fr.dechriste.iot.airboatcontroller.control;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accumulates the completed writes of one write path and reports the throughput
+ * observed since the previous sample.
+ */
+public final class ThroughputMeter {
+    private final Clock mClock;
+    private long mTotalBytes;
+    private long mTotalWrites;
+    private long mSampleStartNanos;
+    private long mSampleBytes;
+
+    public ThroughputMeter(Clock clock) {
+        mClock = clock;
+        mSampleStartNanos = clock.nanoTime();
+    }
+
+    public synchronized void record(int bytes) {
+        mTotalBytes += bytes;
+        mTotalWrites++;
+        mSampleBytes += bytes;
+    }
+
+    public synchronized long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    public synchronized long getTotalWrites() {
+        return mTotalWrites;
+    }
+
+    /** Returns the bytes per second written since the previous call, and starts a new sample. */
+    public synchronized float sampleBytesPerSecond() {
+        long now = mClock.nanoTime();
+        long elapsed = now - mSampleStartNanos;
+        float throughput = elapsed > 0 ? mSampleBytes * (float) TimeUnit.SECONDS.toNanos(1) / elapsed : 0;
+        mSampleStartNanos = now;
+        mSampleBytes = 0;
+        return throughput;
+    }
+}
@@ -0,0 +1,14 @@
+package fr.dechriste.iot.airboatcontroller.control;
+
+/**
+ * How the frames are written to the UART characteristic of a boat.
+ */
+public enum TransportMode {
+    /** Every frame waits for the GATT write response. */
+    ACKNOWLEDGED,
+    /**
+     * Control frames are written without response and one-shot commands are batched with
+     * the pending control frame, one command per line, when the negotiated MTU allows it.
+     */
+    FAST
+}
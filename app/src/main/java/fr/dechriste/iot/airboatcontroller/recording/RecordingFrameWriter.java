@@ -0,0 +1,46 @@
+package fr.dechriste.iot.airboatcontroller.recording;
+
+import fr.dechriste.iot.airboatcontroller.control.CommandPipeline;
+import io.reactivex.Single;
+
+/**
+ * Records the packets exchanged on a link while a recorder is set.
+ *
+ * The recorder can be swapped at any time, so a recording starts or stops without
+ * reopening the link.
+ */
+public final class RecordingFrameWriter implements CommandPipeline.FrameWriter {
+    private final CommandPipeline.FrameWriter mWriter;
+    private volatile SessionRecorder mRecorder;
+
+    public RecordingFrameWriter(CommandPipeline.FrameWriter writer) {
+        mWriter = writer;
+    }
+
+    /** @return the recorder replaced, to be closed by the caller. */
+    public SessionRecorder setRecorder(SessionRecorder recorder) {
+        SessionRecorder previous = mRecorder;
+        mRecorder = recorder;
+        return previous;
+    }
+
+    public SessionRecorder getRecorder() {
+        return mRecorder;
+    }
+
+    public void recordInbound(byte[] packet) {
+        SessionRecorder recorder = mRecorder;
+        if (recorder != null) {
+            recorder.recordInbound(packet);
+        }
+    }
+
+    @Override
+    public Single<byte[]> write(byte[] frame, boolean acknowledged) {
+        SessionRecorder recorder = mRecorder;
+        if (recorder != null) {
+            recorder.recordOutbound(frame, acknowledged);
+        }
+        return mWriter.write(frame, acknowledged);
+    }
+}
@@ -0,0 +1,98 @@
+package fr.dechriste.iot.airboatcontroller.recording;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads back a log written by {@link SessionRecorder}, one record at a time.
+ *
+ * <pre>
+ * while (reader.next()) {
+ *     reader.getTimestampNanos(); reader.getPayload();
+ * }
+ * </pre>
+ */
+public final class SessionReader implements Closeable {
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mBuffer;
+    private int mPosition = SessionRecorder.FILE_HEADER_LENGTH;
+    private int mDirection;
+    private int mFlags;
+    private int mLength;
+    private long mTimestampNanos;
+    private int mPayloadPosition;
+
+    public SessionReader(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        try {
+            mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, mFile.length());
+            mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (mBuffer.capacity() < SessionRecorder.FILE_HEADER_LENGTH
+                    || mBuffer.getInt(0) != SessionRecorder.MAGIC
+                    || mBuffer.getInt(4) != SessionRecorder.VERSION) {
+                throw new IOException("Not a session recording: " + file);
+            }
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    /** Moves to the next record, false at the end of the log. */
+    public boolean next() {
+        if (mPosition + SessionRecorder.RECORD_HEADER_LENGTH > mBuffer.capacity()) {
+            return false;
+        }
+        int header = mBuffer.getInt(mPosition);
+        int length = header & 0xFFFF;
+        if (header == 0 || mPosition + SessionRecorder.RECORD_HEADER_LENGTH + length > mBuffer.capacity()) {
+            return false;
+        }
+        mDirection = header >>> 24;
+        mFlags = (header >>> 16) & 0xFF;
+        mLength = length;
+        mTimestampNanos = mBuffer.getLong(mPosition + 4);
+        mPayloadPosition = mPosition + SessionRecorder.RECORD_HEADER_LENGTH;
+        mPosition = mPayloadPosition + length;
+        return true;
+    }
+
+    /** Time of the record since the recording started. */
+    public long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+
+    public int getDirection() {
+        return mDirection;
+    }
+
+    public boolean isOutbound() {
+        return mDirection == SessionRecorder.DIRECTION_OUTBOUND;
+    }
+
+    public boolean isAcknowledged() {
+        return (mFlags & SessionRecorder.FLAG_ACKNOWLEDGED) != 0;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    public byte[] getPayload() {
+        byte[] payload = new byte[mLength];
+        for (int i = 0; i < mLength; i++) {
+            payload[i] = mBuffer.get(mPayloadPosition + i);
+        }
+        return payload;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+}
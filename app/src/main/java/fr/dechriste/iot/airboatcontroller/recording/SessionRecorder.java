@@ -0,0 +1,131 @@
+package fr.dechriste.iot.airboatcontroller.recording;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.dechriste.iot.airboatcontroller.control.Clock;
+
+/**
+ * Append-only log of the packets exchanged with a boat, written through a memory-mapped file.
+ *
+ * The file is mapped at its full capacity when opened, so recording is a space reservation
+ * with a compare-and-set followed by a copy into the page cache: no system call, no lock and
+ * no allocation. Several threads may record at once. A record is committed by writing its
+ * header last, so a reader stops cleanly at a record interrupted by a crash. Records that do
+ * not fit anymore are dropped and counted.
+ *
+ * Layout: the {@link #MAGIC} and {@link #VERSION} header, then records made of
+ * {@code [int header][long nanos since start][payload]}, little endian. The header packs the
+ * direction, the flags and the payload length, and is never 0.
+ */
+public final class SessionRecorder implements Closeable {
+    public static final int MAGIC = 0x41425243; // "ABRC"
+    public static final int VERSION = 1;
+    public static final int FILE_HEADER_LENGTH = 8;
+    public static final int RECORD_HEADER_LENGTH = 12;
+    public static final int MAX_PAYLOAD_LENGTH = 0xFFFF;
+    public static final int DEFAULT_CAPACITY = 8 * 1024 * 1024;
+
+    public static final int DIRECTION_OUTBOUND = 1;
+    public static final int DIRECTION_INBOUND = 2;
+    /** The outbound packet was written with a response. */
+    public static final int FLAG_ACKNOWLEDGED = 1;
+
+    private final Clock mClock;
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mBuffer;
+    private final long mStartNanos;
+    private final AtomicInteger mPosition = new AtomicInteger(FILE_HEADER_LENGTH);
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private volatile boolean mClosed;
+
+    public SessionRecorder(File file, Clock clock) throws IOException {
+        this(file, clock, DEFAULT_CAPACITY);
+    }
+
+    public SessionRecorder(File file, Clock clock, int capacity) throws IOException {
+        mClock = clock;
+        mFile = new RandomAccessFile(file, "rw");
+        try {
+            mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        mBuffer.putInt(0, MAGIC);
+        mBuffer.putInt(4, VERSION);
+        mStartNanos = clock.nanoTime();
+    }
+
+    public void recordOutbound(byte[] packet, boolean acknowledged) {
+        record(DIRECTION_OUTBOUND, acknowledged ? FLAG_ACKNOWLEDGED : 0, packet, 0, packet.length);
+    }
+
+    public void recordInbound(byte[] packet) {
+        record(DIRECTION_INBOUND, 0, packet, 0, packet.length);
+    }
+
+    /** @return false when the record was dropped, because the log is full or closed. */
+    public boolean record(int direction, int flags, byte[] packet, int offset, int length) {
+        long timestamp = mClock.nanoTime() - mStartNanos;
+        if (mClosed || length > MAX_PAYLOAD_LENGTH) {
+            mDroppedCount.incrementAndGet();
+            return false;
+        }
+        int recordLength = RECORD_HEADER_LENGTH + length;
+        int position;
+        do {
+            position = mPosition.get();
+            if (position + recordLength > mBuffer.capacity()) {
+                mDroppedCount.incrementAndGet();
+                return false;
+            }
+        } while (!mPosition.compareAndSet(position, position + recordLength));
+
+        mBuffer.putLong(position + 4, timestamp);
+        for (int i = 0; i < length; i++) {
+            mBuffer.put(position + RECORD_HEADER_LENGTH + i, packet[offset + i]);
+        }
+        mBuffer.putInt(position, header(direction, flags, length));
+        return true;
+    }
+
+    static int header(int direction, int flags, int length) {
+        return (direction << 24) | ((flags & 0xFF) << 16) | length;
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /** Bytes used so far, including the file header. */
+    public int getLength() {
+        return Math.min(mPosition.get(), mBuffer.capacity());
+    }
+
+    public int getCapacity() {
+        return mBuffer.capacity();
+    }
+
+    /**
+     * Flushes the log to the storage. The file keeps its full mapped size, the unused end is
+     * left empty and ignored by {@link SessionReader}.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mBuffer.force();
+        mFile.close();
+    }
+}
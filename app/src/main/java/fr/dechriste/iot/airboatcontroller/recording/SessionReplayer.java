@@ -0,0 +1,101 @@
+package fr.dechriste.iot.airboatcontroller.recording;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import fr.dechriste.iot.airboatcontroller.control.Clock;
+import fr.dechriste.iot.airboatcontroller.control.CommandPipeline;
+import io.reactivex.Completable;
+import io.reactivex.Observable;
+import io.reactivex.Scheduler;
+
+/**
+ * Plays a recorded session back with its original timing.
+ *
+ * Every packet is due at the replay start plus its offset in the recording, so a slow write
+ * delays the packets right after it but the replay does not drift.
+ */
+public final class SessionReplayer {
+    public static final class Record {
+        final long mTimestampNanos;
+        final int mDirection;
+        final boolean mAcknowledged;
+        final byte[] mPayload;
+
+        Record(long timestampNanos, int direction, boolean acknowledged, byte[] payload) {
+            mTimestampNanos = timestampNanos;
+            mDirection = direction;
+            mAcknowledged = acknowledged;
+            mPayload = payload;
+        }
+
+        public long getTimestampNanos() {
+            return mTimestampNanos;
+        }
+
+        public boolean isOutbound() {
+            return mDirection == SessionRecorder.DIRECTION_OUTBOUND;
+        }
+
+        public boolean isAcknowledged() {
+            return mAcknowledged;
+        }
+
+        public byte[] getPayload() {
+            return mPayload;
+        }
+    }
+
+    private final List<Record> mRecords;
+    private final Clock mClock;
+    private final Scheduler mScheduler;
+
+    public SessionReplayer(List<Record> records, Clock clock, Scheduler scheduler) {
+        mRecords = Collections.unmodifiableList(new ArrayList<>(records));
+        mClock = clock;
+        mScheduler = scheduler;
+    }
+
+    public static List<Record> load(File file) throws IOException {
+        List<Record> records = new ArrayList<>();
+        try (SessionReader reader = new SessionReader(file)) {
+            while (reader.next()) {
+                records.add(new Record(reader.getTimestampNanos(), reader.getDirection(), reader.isAcknowledged(), reader.getPayload()));
+            }
+        }
+        return records;
+    }
+
+    public List<Record> getRecords() {
+        return mRecords;
+    }
+
+    /** Writes the outbound packets to a boat connection or a fake transport. */
+    public Completable replayOutbound(CommandPipeline.FrameWriter writer) {
+        return replay(true)
+                .concatMapCompletable(record -> writer.write(record.mPayload, record.mAcknowledged).ignoreElement());
+    }
+
+    /** Emits the inbound packets, e.g. to feed a telemetry parser. */
+    public Observable<byte[]> replayInbound() {
+        return replay(false).map(record -> record.mPayload);
+    }
+
+    private Observable<Record> replay(boolean outbound) {
+        return Observable.defer(() -> {
+            long startNanos = mClock.nanoTime();
+            return Observable.fromIterable(mRecords)
+                    .filter(record -> record.isOutbound() == outbound)
+                    .concatMap(record -> Observable.defer(() -> {
+                        long delayNanos = startNanos + record.mTimestampNanos - mClock.nanoTime();
+                        return delayNanos <= 0
+                                ? Observable.just(record)
+                                : Observable.timer(delayNanos, TimeUnit.NANOSECONDS, mScheduler).map(tick -> record);
+                    }));
+        });
+    }
+}
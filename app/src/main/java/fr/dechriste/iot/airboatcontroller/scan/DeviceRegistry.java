@@ -0,0 +1,106 @@
+package fr.dechriste.iot.airboatcontroller.scan;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import fr.dechriste.iot.airboatcontroller.control.Clock;
+
+/**
+ * Boats seen while scanning, indexed by MAC address.
+ *
+ * Advertisements are folded in constant time and the sorted list is only built when it is
+ * published, so a busy pit area does not cost a list rebuild per advertisement.
+ * Not thread-safe: feed and publish from the same thread.
+ */
+public final class DeviceRegistry {
+    public static final long DEFAULT_EXPIRY_MS = 10_000;
+
+    // Strongest signal first, then by address so the order is stable
+    private static final Comparator<ScannedDevice> BY_SIGNAL = (first, second) -> {
+        int bySignal = Integer.compare(second.getRssi(), first.getRssi());
+        return bySignal != 0 ? bySignal : first.getMacAddress().compareTo(second.getMacAddress());
+    };
+
+    private static final class Entry {
+        final String mMacAddress;
+        String mName;
+        int mRssi;
+        long mLastSeenNanos;
+
+        Entry(String macAddress) {
+            mMacAddress = macAddress;
+        }
+    }
+
+    private final Clock mClock;
+    private final long mExpiryNanos;
+    private final HashMap<String, Entry> mEntries = new HashMap<>();
+    private boolean mChanged;
+
+    public DeviceRegistry(Clock clock, long expiryMs) {
+        mClock = clock;
+        mExpiryNanos = TimeUnit.MILLISECONDS.toNanos(expiryMs);
+    }
+
+    public void onAdvertisement(String macAddress, String name, int rssi) {
+        Entry entry = mEntries.get(macAddress);
+        if (entry == null) {
+            entry = new Entry(macAddress);
+            entry.mRssi = rssi;
+            mEntries.put(macAddress, entry);
+            mChanged = true;
+        } else {
+            // Smooth the RSSI so the list order does not flicker with every advertisement
+            int smoothed = (entry.mRssi * 3 + rssi) / 4;
+            mChanged |= smoothed != entry.mRssi;
+            entry.mRssi = smoothed;
+        }
+        if (name != null && !name.equals(entry.mName)) {
+            entry.mName = name;
+            mChanged = true;
+        }
+        entry.mLastSeenNanos = mClock.nanoTime();
+    }
+
+    /** Drops the devices not seen for the expiry delay. */
+    public void expire() {
+        long now = mClock.nanoTime();
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().mLastSeenNanos > mExpiryNanos) {
+                iterator.remove();
+                mChanged = true;
+            }
+        }
+    }
+
+    public void clear() {
+        mEntries.clear();
+        mChanged = false;
+    }
+
+    /** Whether the published list would differ from the previous {@link #snapshot()}. */
+    public boolean hasChanged() {
+        return mChanged;
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    /** Returns the devices sorted by signal strength and clears the changed flag. */
+    public List<ScannedDevice> snapshot() {
+        List<ScannedDevice> devices = new ArrayList<>(mEntries.size());
+        for (Entry entry : mEntries.values()) {
+            devices.add(new ScannedDevice(entry.mMacAddress, entry.mName, entry.mRssi, entry.mLastSeenNanos));
+        }
+        Collections.sort(devices, BY_SIGNAL);
+        mChanged = false;
+        return devices;
+    }
+}
@@ -0,0 +1,40 @@
+package fr.dechriste.iot.airboatcontroller.scan;
+
+/**
+ * Steps of a scan, from low latency to low power as it goes on, so a scan left running on
+ * the shore does not drain the phone.
+ *
+ * The boats in range usually show up within the first seconds. Past that the scan keeps going
+ * for a boat being launched or coming in range, at a lower duty cycle and with the list
+ * refreshed less often; the last phase only looks for the boats already known when there are
+ * any, which the Bluetooth controller can filter without waking the phone.
+ */
+public enum ScanPhase {
+    LOW_LATENCY(10_000, 250),
+    BALANCED(50_000, 1000),
+    /** Lasts until the scan stops. */
+    LOW_POWER(0, 5000);
+
+    private final long mDurationMs;
+    private final long mPublishIntervalMs;
+
+    ScanPhase(long durationMs, long publishIntervalMs) {
+        mDurationMs = durationMs;
+        mPublishIntervalMs = publishIntervalMs;
+    }
+
+    /** How long the phase lasts before the next one, 0 for the last phase. */
+    public long getDurationMs() {
+        return mDurationMs;
+    }
+
+    /** Spacing of the list updates, the advertisements being batched in the registry meanwhile. */
+    public long getPublishIntervalMs() {
+        return mPublishIntervalMs;
+    }
+
+    /** Whether the scan is limited to the boats already known, when there are any. */
+    public boolean isKnownBoatsOnly() {
+        return this == LOW_POWER;
+    }
+}
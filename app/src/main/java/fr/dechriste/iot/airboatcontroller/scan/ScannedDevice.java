@@ -0,0 +1,42 @@
+package fr.dechriste.iot.airboatcontroller.scan;
+
+/**
+ * Immutable state of an advertising boat, as published by {@link DeviceRegistry}.
+ */
+public final class ScannedDevice {
+    private final String mMacAddress;
+    private final String mName;
+    private final int mRssi;
+    private final long mLastSeenNanos;
+
+    ScannedDevice(String macAddress, String name, int rssi, long lastSeenNanos) {
+        mMacAddress = macAddress;
+        mName = name;
+        mRssi = rssi;
+        mLastSeenNanos = lastSeenNanos;
+    }
+
+    public String getMacAddress() {
+        return mMacAddress;
+    }
+
+    /** Advertised name, null when the device does not advertise one. */
+    public String getName() {
+        return mName;
+    }
+
+    /** Smoothed signal strength in dBm. */
+    public int getRssi() {
+        return mRssi;
+    }
+
+    public long getLastSeenNanos() {
+        return mLastSeenNanos;
+    }
+
+    /** Whether the displayed content is the same, the last seen time is not displayed. */
+    public boolean hasSameContent(ScannedDevice other) {
+        return mRssi == other.mRssi && mMacAddress.equals(other.mMacAddress)
+                && (mName == null ? other.mName == null : mName.equals(other.mName));
+    }
+}
@@ -0,0 +1,47 @@
+package fr.dechriste.iot.airboatcontroller.telemetry;
+
+/**
+ * A message sent back by the boat firmware.
+ */
+public final class TelemetryEvent {
+    public enum Type {
+        /** The last command was accepted. */
+        ACK,
+        /** The last command was rejected, the value is the firmware error code when known. */
+        NACK,
+        /** Current trim offset of the rudder. */
+        TRIM,
+        /** Battery voltage, in millivolts. */
+        BATTERY,
+        /** Answer to the capabilities query, the {@code CAPABILITY_*} bits of the command encoder. */
+        CAPABILITIES
+    }
+
+    private final Type mType;
+    private final int mValue;
+    private final long mTimestampNanos;
+
+    public TelemetryEvent(Type type, int value, long timestampNanos) {
+        mType = type;
+        mValue = value;
+        mTimestampNanos = timestampNanos;
+    }
+
+    public Type getType() {
+        return mType;
+    }
+
+    public int getValue() {
+        return mValue;
+    }
+
+    /** When the packet completing the message was received. */
+    public long getTimestampNanos() {
+        return mTimestampNanos;
+    }
+
+    @Override
+    public String toString() {
+        return mType + " " + mValue;
+    }
+}
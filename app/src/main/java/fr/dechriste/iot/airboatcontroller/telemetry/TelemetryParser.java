@@ -0,0 +1,237 @@
+package fr.dechriste.iot.airboatcontroller.telemetry;
+
+import fr.dechriste.iot.airboatcontroller.control.Clock;
+import fr.dechriste.iot.airboatcontroller.control.CommandEncoder;
+import io.reactivex.Observable;
+
+/**
+ * Incremental parser of the notifications sent by the boat on the UART characteristic.
+ *
+ * Messages may be split across BLE packets or several may share one packet. Text lines
+ * ({@code OK}, {@code ERR[:<code>]}, {@code AT$TRIM:<offset>}, {@code AT$BATT:<mV>},
+ * {@code AT$CAPS:<bits>}) end with a newline; binary frames use the layout of
+ * {@link CommandEncoder} with the high bit set on the type. Bytes are matched in place:
+ * only the recognized messages allocate an event. Not thread-safe, use one parser per
+ * connection.
+ */
+public final class TelemetryParser {
+    public static final int MAX_LINE_LENGTH = 64;
+
+    public static final byte BINARY_TYPE_ACK = (byte) 0x81;
+    public static final byte BINARY_TYPE_NACK = (byte) 0x82;
+    public static final byte BINARY_TYPE_TRIM = (byte) 0x83;
+    public static final byte BINARY_TYPE_BATTERY = (byte) 0x84;
+    public static final byte BINARY_TYPE_CAPABILITIES = (byte) 0x85;
+
+    public interface Listener {
+        void onTelemetry(TelemetryEvent event);
+    }
+
+    private static final byte[] OK = ascii("OK");
+    private static final byte[] ERROR_PREFIX = ascii("ERR");
+    private static final byte[] TRIM_PREFIX = ascii("AT$TRIM:");
+    private static final byte[] BATTERY_PREFIX = ascii("AT$BATT:");
+    private static final byte[] CAPABILITIES_PREFIX = ascii("AT$CAPS:");
+    private static final long INVALID_NUMBER = Long.MIN_VALUE;
+    // SYNC, TYPE, up to 2 payload bytes, CRC
+    private static final int MAX_BINARY_LENGTH = 5;
+
+    private final Clock mClock;
+    private final Listener mListener;
+    private final byte[] mLine = new byte[MAX_LINE_LENGTH];
+    private final byte[] mFrame = new byte[MAX_BINARY_LENGTH];
+    private int mLineLength;
+    private boolean mDiscardingLine;
+    private int mFrameLength;
+    private int mFrameExpectedLength;
+    private long mEventCount;
+    private long mMalformedCount;
+
+    public TelemetryParser(Clock clock, Listener listener) {
+        mClock = clock;
+        mListener = listener;
+    }
+
+    /** Parses a stream of notification packets, with a parser per subscription. */
+    public static Observable<TelemetryEvent> parse(Observable<byte[]> packets, Clock clock) {
+        return Observable.create(emitter -> {
+            TelemetryParser parser = new TelemetryParser(clock, emitter::onNext);
+            emitter.setDisposable(packets.subscribe(parser::feed, emitter::onError, emitter::onComplete));
+        });
+    }
+
+    public void feed(byte[] packet) {
+        feed(packet, 0, packet.length);
+    }
+
+    public void feed(byte[] packet, int offset, int length) {
+        long now = mClock.nanoTime();
+        for (int i = offset; i < offset + length; i++) {
+            byte b = packet[i];
+            if (mFrameLength > 0) {
+                appendFrame(b, now);
+            } else if (mLineLength == 0 && !mDiscardingLine && b == CommandEncoder.BINARY_SYNC) {
+                mFrame[0] = b;
+                mFrameLength = 1;
+                mFrameExpectedLength = 0;
+            } else {
+                appendLine(b, now);
+            }
+        }
+    }
+
+    /** Drops a partial message, e.g. after a reconnection. */
+    public void reset() {
+        mLineLength = 0;
+        mDiscardingLine = false;
+        mFrameLength = 0;
+    }
+
+    public long getEventCount() {
+        return mEventCount;
+    }
+
+    /** Messages dropped because they were too long, unknown or corrupted. */
+    public long getMalformedCount() {
+        return mMalformedCount;
+    }
+
+    private void appendLine(byte b, long now) {
+        if (b == '\n') {
+            if (!mDiscardingLine && mLineLength > 0) {
+                parseLine(now);
+            }
+            mLineLength = 0;
+            mDiscardingLine = false;
+        } else if (b == '\r' || mDiscardingLine) {
+            // Ignored
+        } else if (mLineLength == MAX_LINE_LENGTH) {
+            mDiscardingLine = true;
+            mMalformedCount++;
+        } else {
+            mLine[mLineLength++] = b;
+        }
+    }
+
+    private void parseLine(long now) {
+        if (mLineLength == OK.length && startsWith(OK)) {
+            emit(TelemetryEvent.Type.ACK, 0, now);
+        } else if (startsWith(ERROR_PREFIX)) {
+            long code = mLineLength > ERROR_PREFIX.length + 1 && mLine[ERROR_PREFIX.length] == ':'
+                    ? parseNumber(ERROR_PREFIX.length + 1) : 0;
+            emit(TelemetryEvent.Type.NACK, code, now);
+        } else if (startsWith(TRIM_PREFIX)) {
+            emit(TelemetryEvent.Type.TRIM, parseNumber(TRIM_PREFIX.length), now);
+        } else if (startsWith(BATTERY_PREFIX)) {
+            emit(TelemetryEvent.Type.BATTERY, parseNumber(BATTERY_PREFIX.length), now);
+        } else if (startsWith(CAPABILITIES_PREFIX)) {
+            emit(TelemetryEvent.Type.CAPABILITIES, parseNumber(CAPABILITIES_PREFIX.length), now);
+        } else {
+            mMalformedCount++;
+        }
+    }
+
+    private void appendFrame(byte b, long now) {
+        mFrame[mFrameLength++] = b;
+        if (mFrameLength == 2) {
+            int payloadLength = binaryPayloadLength(b);
+            if (payloadLength < 0) {
+                mMalformedCount++;
+                mFrameLength = 0;
+                return;
+            }
+            mFrameExpectedLength = 3 + payloadLength;
+        }
+        if (mFrameLength < 2 || mFrameLength < mFrameExpectedLength) {
+            return;
+        }
+        mFrameLength = 0;
+        int crcOffset = mFrameExpectedLength - 1;
+        if (CommandEncoder.crc8(mFrame, 0, crcOffset) != mFrame[crcOffset]) {
+            mMalformedCount++;
+            return;
+        }
+        switch (mFrame[1]) {
+            case BINARY_TYPE_ACK:
+                emit(TelemetryEvent.Type.ACK, 0, now);
+                break;
+            case BINARY_TYPE_NACK:
+                emit(TelemetryEvent.Type.NACK, mFrame[2] & 0xFF, now);
+                break;
+            case BINARY_TYPE_TRIM:
+                emit(TelemetryEvent.Type.TRIM, mFrame[2], now);
+                break;
+            case BINARY_TYPE_BATTERY:
+                emit(TelemetryEvent.Type.BATTERY, ((mFrame[2] & 0xFF) << 8) | (mFrame[3] & 0xFF), now);
+                break;
+            case BINARY_TYPE_CAPABILITIES:
+                emit(TelemetryEvent.Type.CAPABILITIES, mFrame[2] & 0xFF, now);
+                break;
+        }
+    }
+
+    private static int binaryPayloadLength(byte type) {
+        switch (type) {
+            case BINARY_TYPE_ACK:
+                return 0;
+            case BINARY_TYPE_NACK:
+            case BINARY_TYPE_TRIM:
+            case BINARY_TYPE_CAPABILITIES:
+                return 1;
+            case BINARY_TYPE_BATTERY:
+                return 2;
+            default:
+                return -1;
+        }
+    }
+
+    private void emit(TelemetryEvent.Type type, long value, long now) {
+        if (value == INVALID_NUMBER) {
+            mMalformedCount++;
+            return;
+        }
+        mEventCount++;
+        mListener.onTelemetry(new TelemetryEvent(type, (int) value, now));
+    }
+
+    private boolean startsWith(byte[] prefix) {
+        if (mLineLength < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (mLine[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Parses the decimal number ending the line, {@link #INVALID_NUMBER} when there is none. */
+    private long parseNumber(int offset) {
+        boolean negative = offset < mLineLength && mLine[offset] == '-';
+        if (negative) {
+            offset++;
+        }
+        // Nine digits always fit in an int
+        if (offset == mLineLength || mLineLength - offset > 9) {
+            return INVALID_NUMBER;
+        }
+        long value = 0;
+        for (int i = offset; i < mLineLength; i++) {
+            int digit = mLine[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return INVALID_NUMBER;
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    private static byte[] ascii(String value) {
+        byte[] bytes = new byte[value.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) value.charAt(i);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,30 @@
+package fr.dechriste.iot.airboatcontroller.transport;
+
+import fr.dechriste.iot.airboatcontroller.control.CommandPipeline;
+import fr.dechriste.iot.airboatcontroller.control.PowerMode;
+import fr.dechriste.iot.airboatcontroller.control.TransportMode;
+import io.reactivex.Completable;
+import io.reactivex.Observable;
+import io.reactivex.Single;
+
+/**
+ * An established connection to a boat: the packets written to it and notified by it.
+ */
+public interface BoatLink extends CommandPipeline.FrameWriter {
+    /** The mode actually negotiated, which may be less than the one requested. */
+    TransportMode getTransportMode();
+
+    int getMaxPacketLength();
+
+    /** The packets notified by the boat, until the connection is lost. */
+    Observable<byte[]> notifications();
+
+    /** Reads the signal strength of the connection, in dBm. */
+    Single<Integer> readRssi();
+
+    /**
+     * Trades the latency of the link for the power it draws, e.g. through the connection
+     * priority. The link starts {@link PowerMode#ACTIVE}.
+     */
+    Completable requestPowerMode(PowerMode powerMode);
+}
@@ -0,0 +1,23 @@
+package fr.dechriste.iot.airboatcontroller.transport;
+
+import fr.dechriste.iot.airboatcontroller.control.TransportMode;
+import io.reactivex.Observable;
+
+/**
+ * A way to reach a boat, over BLE or simulated.
+ */
+public interface BoatTransport {
+    String getAddress();
+
+    /**
+     * Connects when subscribed and disconnects when disposed. Emits the link once established
+     * and fails when the connection is lost.
+     */
+    Observable<BoatLink> connect(TransportMode requestedMode);
+
+    /**
+     * The link state changes, starting with the current state. A drop shows up here as soon
+     * as the stack notices it, possibly before {@link #connect(TransportMode)} fails.
+     */
+    Observable<LinkState> observeLinkState();
+}
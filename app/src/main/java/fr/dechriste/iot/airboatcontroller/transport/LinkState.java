@@ -0,0 +1,8 @@
+package fr.dechriste.iot.airboatcontroller.transport;
+
+/**
+ * State of the radio link to a boat, as reported by the Bluetooth stack.
+ */
+public enum LinkState {
+    DISCONNECTED, CONNECTING, CONNECTED, DISCONNECTING
+}
@@ -0,0 +1,499 @@
+package fr.dechriste.iot.airboatcontroller.transport;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.dechriste.iot.airboatcontroller.control.Clock;
+import fr.dechriste.iot.airboatcontroller.control.CommandEncoder;
+import fr.dechriste.iot.airboatcontroller.control.CommandPipeline;
+import fr.dechriste.iot.airboatcontroller.control.PowerMode;
+import fr.dechriste.iot.airboatcontroller.control.TransportMode;
+import io.reactivex.Completable;
+import io.reactivex.Observable;
+import io.reactivex.ObservableEmitter;
+import io.reactivex.Scheduler;
+import io.reactivex.Single;
+import io.reactivex.subjects.BehaviorSubject;
+import io.reactivex.subjects.PublishSubject;
+import io.reactivex.subjects.Subject;
+
+/**
+ * A boat running in the process, to exercise the command path without Bluetooth.
+ *
+ * It understands the text and binary command frames, batched or not, and answers
+ * {@code OK} or {@code ERR} to each command, plus its trim offset after a trim command and
+ * its capabilities after the capabilities query, see {@link #setCapabilities(int)}. The
+ * link is modelled as a serial channel: a packet waits for the previous ones to be
+ * transmitted at the configured throughput, then reaches the boat after the latency. An
+ * acknowledged write completes when the response is back; a lost acknowledged write fails,
+ * a lost unacknowledged write silently vanishes. The signal strength read on the link is the
+ * configured one, with a little noise. An idle link adds the longer connection interval of
+ * the low power priority to the latency of the writes. Delays run on the given scheduler, so a
+ * {@code TestScheduler} with a matching {@link Clock} makes a run deterministic.
+ */
+public final class SimulatedBoat implements BoatTransport {
+    public static final long DEFAULT_LATENCY_MS = 15;
+    public static final long DEFAULT_CONNECT_DELAY_MS = 100;
+    public static final int DEFAULT_BYTES_PER_SECOND = 10_000;
+    public static final int DEFAULT_MAX_PACKET_LENGTH = 182;
+    public static final int DEFAULT_RSSI = -60;
+    private static final int RSSI_NOISE = 3;
+    // Typical connection interval with the low power priority
+    private static final long LOW_POWER_LATENCY_MS = 100;
+
+    private static final byte[] PARAMS_PREFIX = "AT$PARAMS:".getBytes();
+    private static final byte[] TRIM_PREFIX = "AT$TRIM:".getBytes();
+    private static final int ALL_CAPABILITIES = CommandEncoder.CAPABILITY_BINARY | CommandEncoder.CAPABILITY_COMPRESSED;
+    private static final byte[] OK = "OK\n".getBytes();
+    private static final byte[] ERROR = "ERR\n".getBytes();
+
+    private final String mAddress;
+    private final Clock mClock;
+    private final Scheduler mScheduler;
+    private final Random mRandom;
+
+    private volatile long mLatencyNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_LATENCY_MS);
+    private volatile long mConnectDelayNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_CONNECT_DELAY_MS);
+    private volatile double mLossRate;
+    private volatile int mBytesPerSecond = DEFAULT_BYTES_PER_SECOND;
+    private volatile int mMaxPacketLength = DEFAULT_MAX_PACKET_LENGTH;
+    private volatile boolean mWriteWithoutResponseSupported = true;
+    private volatile int mCapabilities = ALL_CAPABILITIES;
+    private volatile int mRssi = DEFAULT_RSSI;
+
+    // Guarded by this
+    private Link mLink;
+    private long mLinkFreeNanos;
+    private int mThrottle;
+    private int mServo;
+    private int mTrim;
+    private long mLastCommandNanos;
+
+    private final Subject<LinkState> mLinkState = BehaviorSubject.createDefault(LinkState.DISCONNECTED).toSerialized();
+    private final AtomicLong mPacketsSent = new AtomicLong();
+    private final AtomicLong mPacketsLost = new AtomicLong();
+    private final AtomicLong mCommandsApplied = new AtomicLong();
+    private final AtomicLong mCommandsRejected = new AtomicLong();
+
+    public SimulatedBoat(String address, Clock clock, Scheduler scheduler, long seed) {
+        mAddress = address;
+        mClock = clock;
+        mScheduler = scheduler;
+        mRandom = new Random(seed);
+    }
+
+    @Override
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /** One way delay of a packet, once transmitted. */
+    public void setLatencyMs(long latencyMs) {
+        mLatencyNanos = TimeUnit.MILLISECONDS.toNanos(latencyMs);
+    }
+
+    public void setConnectDelayMs(long connectDelayMs) {
+        mConnectDelayNanos = TimeUnit.MILLISECONDS.toNanos(connectDelayMs);
+    }
+
+    /** Probability, from 0 to 1, that a packet is lost. */
+    public void setLossRate(double lossRate) {
+        mLossRate = lossRate;
+    }
+
+    /** Throughput of the link, 0 for unlimited. */
+    public void setBytesPerSecond(int bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    /** Applies to the next connections. */
+    public void setMaxPacketLength(int maxPacketLength) {
+        mMaxPacketLength = maxPacketLength;
+    }
+
+    /** Applies to the next connections: when false, fast mode falls back to acknowledged writes. */
+    public void setWriteWithoutResponseSupported(boolean supported) {
+        mWriteWithoutResponseSupported = supported;
+    }
+
+    /**
+     * The {@code CommandEncoder.CAPABILITY_*} bits of the simulated firmware, all of them by
+     * default. With 0, the boat behaves as a firmware only knowing the text commands.
+     */
+    public void setCapabilities(int capabilities) {
+        mCapabilities = capabilities;
+    }
+
+    /** Signal strength of the link in dBm, e.g. lowered with the loss rate to move the boat away. */
+    public void setRssi(int rssi) {
+        mRssi = rssi;
+    }
+
+    /** Mode requested on the current link, {@link PowerMode#ACTIVE} when not connected. */
+    public PowerMode getPowerMode() {
+        Link link;
+        synchronized (this) {
+            link = mLink;
+        }
+        return link != null ? link.mPowerMode : PowerMode.ACTIVE;
+    }
+
+    @Override
+    public Observable<BoatLink> connect(TransportMode requestedMode) {
+        TransportMode mode = mWriteWithoutResponseSupported ? requestedMode : TransportMode.ACKNOWLEDGED;
+        int maxPacketLength = mode == TransportMode.FAST ? mMaxPacketLength : CommandEncoder.MAX_FRAME_LENGTH;
+        return Observable.timer(mConnectDelayNanos, TimeUnit.NANOSECONDS, mScheduler)
+                .doOnSubscribe(disposable -> {
+                    if (!isConnected()) {
+                        mLinkState.onNext(LinkState.CONNECTING);
+                    }
+                })
+                .flatMap(tick -> Observable.<BoatLink>create(emitter -> {
+                    Link link = new Link(mode, maxPacketLength, emitter);
+                    synchronized (this) {
+                        if (mLink != null) {
+                            emitter.onError(new IOException("Already connected to " + mAddress));
+                            return;
+                        }
+                        mLink = link;
+                    }
+                    emitter.setCancellable(() -> disconnect(link));
+                    mLinkState.onNext(LinkState.CONNECTED);
+                    emitter.onNext(link);
+                }))
+                .doOnDispose(() -> {
+                    if (!isConnected()) {
+                        mLinkState.onNext(LinkState.DISCONNECTED);
+                    }
+                });
+    }
+
+    @Override
+    public Observable<LinkState> observeLinkState() {
+        return mLinkState.distinctUntilChanged();
+    }
+
+    /** Drops the current connection, as when the boat gets out of range. */
+    public void dropConnection() {
+        Link link;
+        synchronized (this) {
+            link = mLink;
+        }
+        if (link != null) {
+            mLinkState.onNext(LinkState.DISCONNECTING);
+            disconnect(link);
+            link.mEmitter.tryOnError(new IOException("Connection to " + mAddress + " lost"));
+        }
+    }
+
+    public synchronized boolean isConnected() {
+        return mLink != null;
+    }
+
+    public synchronized int getThrottle() {
+        return mThrottle;
+    }
+
+    public synchronized int getServo() {
+        return mServo;
+    }
+
+    public synchronized int getTrim() {
+        return mTrim;
+    }
+
+    /** When the last command was applied, 0 if none was. */
+    public synchronized long getLastCommandNanos() {
+        return mLastCommandNanos;
+    }
+
+    public long getPacketsSent() {
+        return mPacketsSent.get();
+    }
+
+    public long getPacketsLost() {
+        return mPacketsLost.get();
+    }
+
+    public long getCommandsApplied() {
+        return mCommandsApplied.get();
+    }
+
+    public long getCommandsRejected() {
+        return mCommandsRejected.get();
+    }
+
+    private void disconnect(Link link) {
+        synchronized (this) {
+            if (mLink != link) {
+                return;
+            }
+            mLink = null;
+        }
+        mLinkState.onNext(LinkState.DISCONNECTED);
+        link.mNotifications.onComplete();
+    }
+
+    private Single<byte[]> write(Link link, byte[] frame, boolean acknowledged) {
+        if (frame.length > link.mMaxPacketLength) {
+            return Single.error(new IllegalArgumentException("Packet of " + frame.length + " bytes, max " + link.mMaxPacketLength));
+        }
+        long now = mClock.nanoTime();
+        long sentNanos;
+        boolean lost;
+        synchronized (this) {
+            if (mLink != link) {
+                return Single.error(new IOException("Not connected to " + mAddress));
+            }
+            int bytesPerSecond = mBytesPerSecond;
+            long transmitNanos = bytesPerSecond > 0 ? TimeUnit.SECONDS.toNanos(frame.length) / bytesPerSecond : 0;
+            sentNanos = Math.max(now, mLinkFreeNanos) + transmitNanos;
+            mLinkFreeNanos = sentNanos;
+            lost = mRandom.nextDouble() < mLossRate;
+        }
+        mPacketsSent.incrementAndGet();
+        long latencyNanos = mLatencyNanos;
+        if (link.mPowerMode == PowerMode.IDLE) {
+            latencyNanos += TimeUnit.MILLISECONDS.toNanos(LOW_POWER_LATENCY_MS);
+        }
+        long arrivalDelayNanos = sentNanos - now + latencyNanos;
+        if (lost) {
+            mPacketsLost.incrementAndGet();
+        } else {
+            // The encoder recycles its frames, the boat works on a copy
+            byte[] packet = frame.clone();
+            mScheduler.scheduleDirect(() -> receive(link, packet), arrivalDelayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        if (!acknowledged) {
+            return Single.timer(sentNanos - now, TimeUnit.NANOSECONDS, mScheduler).map(tick -> frame);
+        }
+        Single<Long> response = Single.timer(arrivalDelayNanos + latencyNanos, TimeUnit.NANOSECONDS, mScheduler);
+        return lost
+                ? response.flatMap(tick -> Single.error(new IOException("Write to " + mAddress + " lost")))
+                : response.map(tick -> frame);
+    }
+
+    private Single<Integer> readRssi(Link link) {
+        int rssi;
+        synchronized (this) {
+            if (mLink != link) {
+                return Single.error(new IOException("Not connected to " + mAddress));
+            }
+            rssi = mRssi + mRandom.nextInt(2 * RSSI_NOISE + 1) - RSSI_NOISE;
+        }
+        // A request and its response, over the air
+        return Single.timer(2 * mLatencyNanos, TimeUnit.NANOSECONDS, mScheduler).map(tick -> rssi);
+    }
+
+    private void receive(Link link, byte[] packet) {
+        int offset = 0;
+        while (offset < packet.length) {
+            int end = packet[offset] == CommandEncoder.BINARY_SYNC
+                    ? Math.min(packet.length, offset + binaryFrameLength(packet, offset))
+                    : indexOf(packet, offset, CommandPipeline.BATCH_SEPARATOR);
+            if (end > offset) {
+                boolean binary = packet[offset] == CommandEncoder.BINARY_SYNC;
+                boolean applied = binary ? applyBinary(packet, offset, end) : applyText(packet, offset, end);
+                (applied ? mCommandsApplied : mCommandsRejected).incrementAndGet();
+                reply(link, applied ? OK : ERROR);
+                boolean trim = binary
+                        ? end - offset > 1 && packet[offset + 1] == CommandEncoder.BINARY_TYPE_TRIM
+                        : startsWith(packet, offset, end, TRIM_PREFIX);
+                if (applied && trim) {
+                    reply(link, ("AT$TRIM:" + getTrim() + "\n").getBytes());
+                } else if (applied && !binary && isCapabilitiesQuery(packet, offset, end)) {
+                    reply(link, ("AT$CAPS:" + mCapabilities + "\n").getBytes());
+                }
+            }
+            offset = end;
+            if (offset < packet.length && packet[offset] == CommandPipeline.BATCH_SEPARATOR) {
+                offset++;
+            }
+        }
+    }
+
+    private boolean applyText(byte[] packet, int offset, int end) {
+        if (startsWith(packet, offset, end, PARAMS_PREFIX)) {
+            int start = offset + PARAMS_PREFIX.length;
+            int separator = indexOf(packet, start, (byte) ';');
+            if (separator >= end) {
+                return false;
+            }
+            long throttle = parseNumber(packet, start, separator);
+            long servo = parseNumber(packet, separator + 1, end);
+            if (!isValidValue(throttle) || !isValidValue(servo)) {
+                return false;
+            }
+            applyParams((int) throttle, (int) servo);
+            return true;
+        }
+        if (startsWith(packet, offset, end, TRIM_PREFIX) && end == offset + TRIM_PREFIX.length + 1) {
+            return applyTrim(packet[offset + TRIM_PREFIX.length]);
+        }
+        return isCapabilitiesQuery(packet, offset, end) && mCapabilities != 0;
+    }
+
+    private static boolean isCapabilitiesQuery(byte[] packet, int offset, int end) {
+        return end - offset == CommandEncoder.CAPABILITIES_QUERY.length
+                && startsWith(packet, offset, end, CommandEncoder.CAPABILITIES_QUERY);
+    }
+
+    private boolean applyBinary(byte[] packet, int offset, int end) {
+        int length = end - offset;
+        int capabilities = mCapabilities;
+        if ((capabilities & CommandEncoder.CAPABILITY_BINARY) == 0 || length < 3 || length != binaryFrameLength(packet, offset)
+                || CommandEncoder.crc8(packet, offset, length - 1) != packet[end - 1]) {
+            return false;
+        }
+        switch (packet[offset + 1]) {
+            case CommandEncoder.BINARY_TYPE_PARAMS:
+                applyParams(packet[offset + 2], packet[offset + 3]);
+                return true;
+            case CommandEncoder.BINARY_TYPE_THROTTLE:
+            case CommandEncoder.BINARY_TYPE_SERVO:
+                if ((capabilities & CommandEncoder.CAPABILITY_COMPRESSED) == 0 || !isValidValue(packet[offset + 2])) {
+                    return false;
+                }
+                boolean throttle = packet[offset + 1] == CommandEncoder.BINARY_TYPE_THROTTLE;
+                synchronized (this) {
+                    applyParams(throttle ? packet[offset + 2] : mThrottle, throttle ? mServo : packet[offset + 2]);
+                }
+                return true;
+            default:
+                return applyTrim(packet[offset + 2]);
+        }
+    }
+
+    private static int binaryFrameLength(byte[] packet, int offset) {
+        if (offset + 1 >= packet.length) {
+            return 1;
+        }
+        switch (packet[offset + 1]) {
+            case CommandEncoder.BINARY_TYPE_PARAMS:
+                return 5;
+            case CommandEncoder.BINARY_TYPE_TRIM:
+            case CommandEncoder.BINARY_TYPE_THROTTLE:
+            case CommandEncoder.BINARY_TYPE_SERVO:
+                return 4;
+            default:
+                return 2;
+        }
+    }
+
+    private synchronized void applyParams(int throttle, int servo) {
+        mThrottle = throttle;
+        mServo = servo;
+        mLastCommandNanos = mClock.nanoTime();
+    }
+
+    private synchronized boolean applyTrim(byte symbol) {
+        if (symbol == '+') {
+            mTrim++;
+        } else if (symbol == '-') {
+            mTrim--;
+        } else if (symbol == 'R') {
+            mTrim = 0;
+        } else {
+            return false;
+        }
+        mLastCommandNanos = mClock.nanoTime();
+        return true;
+    }
+
+    private void reply(Link link, byte[] packet) {
+        mScheduler.scheduleDirect(() -> link.mNotifications.onNext(packet), mLatencyNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static boolean isValidValue(long value) {
+        return value >= CommandEncoder.MIN_VALUE && value <= CommandEncoder.MAX_VALUE;
+    }
+
+    private static boolean startsWith(byte[] packet, int offset, int end, byte[] prefix) {
+        if (end - offset < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (packet[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] packet, int offset, byte value) {
+        for (int i = offset; i < packet.length; i++) {
+            if (packet[i] == value) {
+                return i;
+            }
+        }
+        return packet.length;
+    }
+
+    private static long parseNumber(byte[] packet, int offset, int end) {
+        boolean negative = offset < end && packet[offset] == '-';
+        if (negative) {
+            offset++;
+        }
+        if (offset == end || end - offset > 9) {
+            return Long.MIN_VALUE;
+        }
+        long value = 0;
+        for (int i = offset; i < end; i++) {
+            int digit = packet[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    private final class Link implements BoatLink {
+        final TransportMode mMode;
+        final int mMaxPacketLength;
+        final ObservableEmitter<BoatLink> mEmitter;
+        final Subject<byte[]> mNotifications = PublishSubject.<byte[]>create().toSerialized();
+        volatile PowerMode mPowerMode = PowerMode.ACTIVE;
+
+        Link(TransportMode mode, int maxPacketLength, ObservableEmitter<BoatLink> emitter) {
+            mMode = mode;
+            mMaxPacketLength = maxPacketLength;
+            mEmitter = emitter;
+        }
+
+        @Override
+        public TransportMode getTransportMode() {
+            return mMode;
+        }
+
+        @Override
+        public int getMaxPacketLength() {
+            return mMaxPacketLength;
+        }
+
+        @Override
+        public Observable<byte[]> notifications() {
+            return mNotifications;
+        }
+
+        @Override
+        public Single<Integer> readRssi() {
+            return SimulatedBoat.this.readRssi(this);
+        }
+
+        @Override
+        public Completable requestPowerMode(PowerMode powerMode) {
+            // The connection parameters are updated over the air
+            return Completable.timer(2 * mLatencyNanos, TimeUnit.NANOSECONDS, mScheduler)
+                    .doOnComplete(() -> mPowerMode = powerMode);
+        }
+
+        @Override
+        public Single<byte[]> write(byte[] frame, boolean acknowledged) {
+            return SimulatedBoat.this.write(this, frame, acknowledged);
+        }
+    }
+}
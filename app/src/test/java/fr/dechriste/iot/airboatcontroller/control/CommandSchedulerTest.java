@@ -0,0 +1,114 @@
+package fr.dechriste.iot.airboatcontroller.control;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class CommandSchedulerTest {
+    private long mNowMs = 1000;
+    private final CommandScheduler mCommandScheduler = new CommandScheduler(
+            () -> TimeUnit.MILLISECONDS.toNanos(mNowMs), 50, 500);
+
+    @Test
+    public void firstFrameIsSentAtOnce() {
+        assertDelayMs(0, 10, 0);
+    }
+
+    @Test
+    public void changesKeepTheMinimumSpacing() {
+        send(10, 0);
+        mNowMs += 20;
+        assertDelayMs(30, 20, 0);
+        mNowMs += 30;
+        assertDelayMs(0, 20, 0);
+        send(20, 0);
+        // A change after the spacing goes out at once
+        mNowMs += 80;
+        assertDelayMs(0, 30, 0);
+    }
+
+    @Test
+    public void pendingChangesAreCoalesced() {
+        send(10, 0);
+        mNowMs += 10;
+        assertDelayMs(40, 20, 0);
+        mNowMs += 20;
+        // The values checked last replace the pending ones, sent at the same time
+        assertDelayMs(20, 30, 5);
+        mNowMs += 20;
+        assertDelayMs(0, 30, 5);
+        send(30, 5);
+        // Back to the heartbeat once sent
+        assertDelayMs(500, 30, 5);
+    }
+
+    @Test
+    public void heartbeatFollowsAnAbsoluteTimeline() {
+        send(10, 0);
+        assertDelayMs(500, 10, 0);
+        mNowMs += 499;
+        assertDelayMs(1, 10, 0);
+        // Sent 10 ms late, the next one is still due a period after the previous deadline
+        mNowMs += 11;
+        assertDelayMs(0, 10, 0);
+        send(10, 0);
+        assertDelayMs(490, 10, 0);
+    }
+
+    @Test
+    public void heartbeatRestartsWhenAPeriodBehind() {
+        send(10, 0);
+        mNowMs += 1200;
+        send(10, 0);
+        assertDelayMs(500, 10, 0);
+    }
+
+    @Test
+    public void changeRestartsTheHeartbeat() {
+        send(10, 0);
+        mNowMs += 300;
+        send(20, 0);
+        assertDelayMs(500, 20, 0);
+    }
+
+    @Test
+    public void resetSendsTheNextFrameAtOnce() {
+        send(10, 0);
+        mCommandScheduler.reset();
+        assertDelayMs(0, 10, 0);
+    }
+
+    @Test
+    public void intervalsApplyToTheNextCheck() {
+        send(10, 0);
+        mCommandScheduler.setIntervals(100, 1000);
+        mNowMs += 50;
+        assertDelayMs(50, 20, 0);
+        // The heartbeat already due is kept, the new period starts from it
+        assertDelayMs(450, 10, 0);
+        mNowMs += 450;
+        send(10, 0);
+        assertDelayMs(1000, 10, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroMinimumInterval() {
+        mCommandScheduler.setIntervals(0, 500);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsHeartbeatShorterThanMinimumInterval() {
+        new CommandScheduler(Clock.SYSTEM, 100, 50);
+    }
+
+    private void send(int throttle, int servo) {
+        assertDelayMs(0, throttle, servo);
+        mCommandScheduler.onSent(throttle, servo);
+    }
+
+    private void assertDelayMs(long delayMs, int throttle, int servo) {
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(delayMs), mCommandScheduler.nextSendDelayNanos(throttle, servo));
+    }
+}
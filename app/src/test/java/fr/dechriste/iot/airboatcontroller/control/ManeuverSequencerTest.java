@@ -0,0 +1,149 @@
+package fr.dechriste.iot.airboatcontroller.control;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ManeuverSequencerTest {
+    private static final long MIN_INTERVAL_MS = 200;
+    private static final long HEARTBEAT_MS = 500;
+    // Write latency of the simulated boat, and a tick rounded up
+    private static final long DELIVERY_MS = 25;
+
+    private SimulatedLink mSimulatedLink;
+    private InputArbiter mInputArbiter;
+    private ControlChannel mControlChannel;
+    private ManeuverSequencer mManeuverSequencer;
+    private final List<ManeuverSequencer.Event> mEvents = new ArrayList<>();
+    // Time, throttle and servo of each change seen by the boat
+    private final List<long[]> mReceived = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mSimulatedLink = new SimulatedLink(1);
+        CommandPipeline commandPipeline = mSimulatedLink.connect(TransportMode.FAST);
+        mInputArbiter = new InputArbiter(mSimulatedLink.mClock);
+        mControlChannel = new ControlChannel("SIM-1", mInputArbiter, mSimulatedLink.mClock, mSimulatedLink.mMetrics,
+                MIN_INTERVAL_MS, HEARTBEAT_MS);
+        mControlChannel.setTargeted(true, mSimulatedLink.mClock.nanoTime());
+        mControlChannel.attach(commandPipeline, 0);
+        // As the control loop does
+        mManeuverSequencer = new ManeuverSequencer(mSimulatedLink.mClock, (throttle, servo) -> {
+            mInputArbiter.set(ControlSnapshot.Source.SYSTEM, throttle, servo);
+            mControlChannel.onInput(mSimulatedLink.mClock.nanoTime());
+            mControlChannel.sendNow();
+        });
+        mManeuverSequencer.events().subscribe(mEvents::add);
+        // Settles the link on its heartbeat before the maneuver starts
+        run(1000, 0);
+    }
+
+    @Test
+    public void stepsReachTheBoatOnTime() {
+        mManeuverSequencer.start(Maneuver.parse("60;0 250ms, 60;-100 100ms, 0;50 130ms, 20;0 0.5s"));
+        long startMs = mSimulatedLink.nowMillis();
+        run(1500, 0);
+
+        // Closer than the minimum spacing, the steps would wait for the link without sendNow
+        assertReceived(startMs, 60, 0);
+        assertReceived(startMs + 250, 60, -100);
+        assertReceived(startMs + 350, 0, 50);
+        assertReceived(startMs + 480, 20, 0);
+        assertReceived(startMs + 980, 0, 0);
+        assertEquals(0, mManeuverSequencer.getMissedDeadlines());
+        assertEquals(ManeuverSequencer.Event.Type.FINISHED, mEvents.get(mEvents.size() - 1).getType());
+    }
+
+    @Test
+    public void stalledTickReportsTheLateStepOnly() {
+        mManeuverSequencer.start(Maneuver.parse("60;0 500ms, 0;50 500ms, 30;0 500ms"));
+        long startMs = mSimulatedLink.nowMillis();
+        run(450, 0);
+        // The control thread is held up past the deadline of the second step
+        run(1500, 450);
+
+        assertEquals(1, mManeuverSequencer.getMissedDeadlines());
+        ManeuverSequencer.Event missed = findEvent(ManeuverSequencer.Event.Type.DEADLINE_MISSED, 1);
+        assertTrue(missed.getLatenessNanos() >= TimeUnit.MILLISECONDS.toNanos(400));
+        assertReceived(startMs + 900, 0, 50);
+        // Due on the absolute timeline, not shifted by the stall
+        assertReceived(startMs + 1000, 30, 0);
+        assertEquals(0, findEvent(ManeuverSequencer.Event.Type.STEP, 2).getLatenessNanos());
+    }
+
+    @Test
+    public void stepWhoseWindowIsOverIsSkipped() {
+        mManeuverSequencer.start(Maneuver.parse("60;0 1s, 30;0 100ms, 0;50 1s"));
+        long startMs = mSimulatedLink.nowMillis();
+        run(950, 0);
+        run(1500, 300);
+
+        assertEquals(2, mManeuverSequencer.getMissedDeadlines());
+        findEvent(ManeuverSequencer.Event.Type.DEADLINE_MISSED, 1);
+        findEvent(ManeuverSequencer.Event.Type.DEADLINE_MISSED, 2);
+        for (ManeuverSequencer.Event event : mEvents) {
+            assertFalse(event.getType() == ManeuverSequencer.Event.Type.STEP && event.getStep() == 1);
+        }
+        for (long[] received : mReceived) {
+            assertFalse(received[1] == 30);
+        }
+        assertReceived(startMs + 1250, 0, 50);
+    }
+
+    @Test
+    public void abortAppliesNoFurtherStep() {
+        mManeuverSequencer.start(Maneuver.parse("60;0 1s, 0;50 1s"));
+        run(500, 0);
+        assertTrue(mManeuverSequencer.abort());
+        int received = mReceived.size();
+        run(1500, 0);
+
+        assertFalse(mManeuverSequencer.isRunning());
+        assertFalse(mManeuverSequencer.abort());
+        assertEquals(received, mReceived.size());
+        assertEquals(ManeuverSequencer.Event.Type.ABORTED, mEvents.get(mEvents.size() - 1).getType());
+    }
+
+    // Runs the loop after holding the control thread up for stallMs
+    private void run(long durationMs, long stallMs) {
+        mSimulatedLink.run(stallMs, () -> TimeUnit.MILLISECONDS.toNanos(stallMs), this::onMillisecond);
+        mSimulatedLink.run(durationMs - stallMs,
+                () -> Math.min(mManeuverSequencer.tick(), mControlChannel.tick(false)), this::onMillisecond);
+    }
+
+    private void onMillisecond() {
+        int throttle = mSimulatedLink.mBoat.getThrottle();
+        int servo = mSimulatedLink.mBoat.getServo();
+        long[] last = mReceived.isEmpty() ? null : mReceived.get(mReceived.size() - 1);
+        if (last == null ? throttle != 0 || servo != 0 : last[1] != throttle || last[2] != servo) {
+            mReceived.add(new long[] {mSimulatedLink.nowMillis(), throttle, servo});
+        }
+    }
+
+    private void assertReceived(long dueMs, int throttle, int servo) {
+        for (long[] received : mReceived) {
+            if (received[1] == throttle && received[2] == servo && received[0] >= dueMs) {
+                assertTrue(throttle + ";" + servo + " due at " + dueMs + " ms, received at " + received[0] + " ms",
+                        received[0] <= dueMs + DELIVERY_MS);
+                return;
+            }
+        }
+        throw new AssertionError(throttle + ";" + servo + " due at " + dueMs + " ms, never received");
+    }
+
+    private ManeuverSequencer.Event findEvent(ManeuverSequencer.Event.Type type, int step) {
+        for (ManeuverSequencer.Event event : mEvents) {
+            if (event.getType() == type && event.getStep() == step) {
+                return event;
+            }
+        }
+        throw new AssertionError(type + " #" + step + " not reported in " + mEvents);
+    }
+}
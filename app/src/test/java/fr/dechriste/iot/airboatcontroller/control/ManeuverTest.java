@@ -0,0 +1,78 @@
+package fr.dechriste.iot.airboatcontroller.control;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ManeuverTest {
+    @Test
+    public void parsesStepsAndUnits() {
+        Maneuver maneuver = Maneuver.parse("60;0 3s, 0;-100 1.5s\n-20;40 250ms");
+
+        assertEquals(3, maneuver.getSteps().size());
+        Maneuver.Step step = maneuver.getSteps().get(1);
+        assertEquals(0, step.getThrottle());
+        assertEquals(-100, step.getServo());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1500), step.getDurationNanos());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(4750), maneuver.getDurationNanos());
+    }
+
+    @Test
+    public void acceptsTheLongestStepAndManeuver() {
+        StringBuilder script = new StringBuilder();
+        for (long i = 0; i < Maneuver.MAX_DURATION_MS / Maneuver.MAX_STEP_DURATION_MS; i++) {
+            script.append("10;0 ").append(Maneuver.MAX_STEP_DURATION_MS).append("ms,");
+        }
+
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(Maneuver.MAX_DURATION_MS), Maneuver.parse(script.toString()).getDurationNanos());
+    }
+
+    @Test
+    public void rejectsInvalidScripts() {
+        assertRejected("");
+        assertRejected(" , \n");
+        assertRejected("60 3s");
+        assertRejected("60;0");
+        assertRejected("60;0 3");
+        assertRejected("101;0 3s");
+        assertRejected("60;x 3s");
+        assertRejected("60;0 0s");
+        assertRejected("60;0 -1s");
+        assertRejected("60;0 fast");
+    }
+
+    @Test
+    public void rejectsDurationsThatOverflow() {
+        assertRejected("60;0 Infinitys");
+        assertRejected("60;0 -Infinityms");
+        assertRejected("60;0 NaNs");
+        assertRejected("60;0 1e30s");
+        assertRejected("60;0 " + Long.MAX_VALUE + "ms");
+    }
+
+    @Test
+    public void rejectsTooLongSteps() {
+        assertRejected("60;0 " + (Maneuver.MAX_STEP_DURATION_MS + 1) + "ms");
+    }
+
+    @Test
+    public void rejectsTooLongManeuvers() {
+        StringBuilder script = new StringBuilder();
+        for (long i = 0; i <= Maneuver.MAX_DURATION_MS / Maneuver.MAX_STEP_DURATION_MS; i++) {
+            script.append("10;0 ").append(Maneuver.MAX_STEP_DURATION_MS).append("ms\n");
+        }
+        assertRejected(script.toString());
+    }
+
+    private static void assertRejected(String script) {
+        try {
+            Maneuver maneuver = Maneuver.parse(script);
+            fail("Accepted '" + script + "' as " + maneuver);
+        } catch (IllegalArgumentException expected) {
+            // Reported to the user as is
+        }
+    }
+}
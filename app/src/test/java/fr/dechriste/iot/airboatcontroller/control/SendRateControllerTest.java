@@ -0,0 +1,90 @@
+package fr.dechriste.iot.airboatcontroller.control;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Observable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SendRateControllerTest {
+    private static final long MIN_INTERVAL_MS = 50;
+    private static final long HEARTBEAT_MS = 500;
+    private static final long RSSI_PERIOD_MS = 1000;
+
+    private SimulatedLink mSimulatedLink;
+    private CommandPipeline mCommandPipeline;
+    private SendRateController mSendRateController;
+    private final CommandEncoder mCommandEncoder = new CommandEncoder();
+    private long mNextFrameMs;
+    private int mFrames;
+
+    @Before
+    public void setUp() {
+        mSimulatedLink = new SimulatedLink(1);
+        mCommandPipeline = mSimulatedLink.connect(TransportMode.FAST);
+        mSendRateController = new SendRateController(mSimulatedLink.mClock, MIN_INTERVAL_MS, HEARTBEAT_MS,
+                SendRateController.DEFAULT_EVALUATION_PERIOD_MS);
+        // As the boat connection does
+        LinkQuality linkQuality = mCommandPipeline.getLinkQuality();
+        Observable.interval(0, RSSI_PERIOD_MS, TimeUnit.MILLISECONDS, mSimulatedLink.mScheduler)
+                .concatMapSingle(tick -> mSimulatedLink.mLink.readRssi())
+                .subscribe(linkQuality::onRssi);
+    }
+
+    @Test
+    public void poorLinkBacksOffToTheHeartbeat() {
+        mSimulatedLink.mBoat.setRssi(-92);
+        mSimulatedLink.mBoat.setLossRate(0.2);
+        run(5000);
+
+        assertEquals(LinkQuality.Level.POOR, mSendRateController.getLevel());
+        assertEquals(HEARTBEAT_MS, mSendRateController.getIntervalMs());
+        assertTrue(mSendRateController.isControlAcknowledged());
+        assertTrue(mCommandPipeline.isControlAcknowledged());
+    }
+
+    @Test
+    public void goodLinkRecovers() {
+        mSimulatedLink.mBoat.setRssi(-92);
+        mSimulatedLink.mBoat.setLossRate(0.2);
+        run(5000);
+        assertEquals(HEARTBEAT_MS, mSendRateController.getIntervalMs());
+
+        mSimulatedLink.mBoat.setRssi(-60);
+        mSimulatedLink.mBoat.setLossRate(0);
+        run(30_000);
+
+        assertEquals(LinkQuality.Level.GOOD, mSendRateController.getLevel());
+        assertEquals(MIN_INTERVAL_MS, mSendRateController.getIntervalMs());
+        assertFalse(mSendRateController.isControlAcknowledged());
+        assertFalse(mCommandPipeline.isControlAcknowledged());
+    }
+
+    @Test
+    public void cleanLinkKeepsTheMinimumSpacing() {
+        run(5000);
+
+        assertEquals(MIN_INTERVAL_MS, mSendRateController.getIntervalMs());
+        assertFalse(mSendRateController.isControlAcknowledged());
+    }
+
+    // Sends a control frame at the interval chosen, and applies the choices as the channel does
+    private void run(long durationMs) {
+        mSimulatedLink.run(durationMs, () -> {
+            long nowMs = mSimulatedLink.nowMillis();
+            if (nowMs >= mNextFrameMs) {
+                mCommandPipeline.submitControl(mCommandEncoder.encodeParams(50, mFrames++ % 30));
+                mNextFrameMs = nowMs + mSendRateController.getIntervalMs();
+            }
+            if (mSendRateController.update(mCommandPipeline.getLinkQuality())) {
+                mCommandPipeline.setControlAcknowledged(mSendRateController.isControlAcknowledged());
+            }
+            return TimeUnit.MILLISECONDS.toNanos(Math.min(mNextFrameMs - nowMs, RSSI_PERIOD_MS));
+        }, () -> { });
+    }
+}
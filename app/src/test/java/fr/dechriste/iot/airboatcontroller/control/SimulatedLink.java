@@ -0,0 +1,65 @@
+package fr.dechriste.iot.airboatcontroller.control;
+
+import java.util.concurrent.TimeUnit;
+
+import fr.dechriste.iot.airboatcontroller.transport.BoatLink;
+import fr.dechriste.iot.airboatcontroller.transport.SimulatedBoat;
+import io.reactivex.schedulers.TestScheduler;
+
+/**
+ * A {@link SimulatedBoat} on virtual time: the delays of the link only run as the test
+ * advances the clock, so a run is deterministic and takes no real time.
+ */
+final class SimulatedLink {
+    /** A step of the control loop, returning the delay before the next one as the channels do. */
+    interface Tick {
+        long tick();
+    }
+
+    final TestScheduler mScheduler = new TestScheduler();
+    final Clock mClock = () -> mScheduler.now(TimeUnit.NANOSECONDS);
+    final ControlMetrics mMetrics = new ControlMetrics();
+    final SimulatedBoat mBoat;
+    BoatLink mLink;
+
+    SimulatedLink(long seed) {
+        mBoat = new SimulatedBoat("SIM-1", mClock, mScheduler, seed);
+    }
+
+    /** Connects with the settings of the boat set so far, and returns the pipeline of the link. */
+    CommandPipeline connect(TransportMode mode) {
+        mBoat.connect(mode).subscribe(link -> mLink = link);
+        advanceMillis(SimulatedBoat.DEFAULT_CONNECT_DELAY_MS);
+        if (mLink == null) {
+            throw new IllegalStateException("Not connected after " + SimulatedBoat.DEFAULT_CONNECT_DELAY_MS + " ms");
+        }
+        return new CommandPipeline(mLink, mLink.getTransportMode(), mLink.getMaxPacketLength(), mScheduler, mClock, mMetrics);
+    }
+
+    long nowMillis() {
+        return mScheduler.now(TimeUnit.MILLISECONDS);
+    }
+
+    void advanceMillis(long millis) {
+        mScheduler.advanceTimeBy(millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a control loop for that long: ticks when the last tick asked to, rounded up to the
+     * millisecond as the handler of the control thread does, and calls back every millisecond.
+     */
+    void run(long durationMs, Tick tick, Runnable everyMillisecond) {
+        long endMs = nowMillis() + durationMs;
+        long nextTickMs = nowMillis();
+        while (nowMillis() < endMs) {
+            if (nowMillis() >= nextTickMs) {
+                long delayNanos = tick.tick();
+                nextTickMs = delayNanos == ControlChannel.IDLE
+                        ? endMs
+                        : nowMillis() + TimeUnit.NANOSECONDS.toMillis(delayNanos + 999_999);
+            }
+            advanceMillis(1);
+            everyMillisecond.run();
+        }
+    }
+}
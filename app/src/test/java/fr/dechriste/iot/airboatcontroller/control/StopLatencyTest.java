@@ -0,0 +1,99 @@
+package fr.dechriste.iot.airboatcontroller.control;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Emergency stops against a boat throttled to 400 B/s, while the loop keeps the control
+ * frames coming and a trim is queued every 370 ms: the stop goes ahead of the queue, so its
+ * latency is about one packet in flight plus a round trip, whatever the queue depth.
+ */
+public class StopLatencyTest {
+    private static final int BYTES_PER_SECOND = 400;
+    private static final long TRIM_PERIOD_MS = 370;
+    private static final long STOP_PERIOD_MS = 5000;
+    private static final int STOPS = 100;
+
+    @Test
+    public void lossless() {
+        for (TransportMode mode : TransportMode.values()) {
+            assertStopLatency(mode, 0, 150);
+        }
+    }
+
+    @Test
+    public void lossy() {
+        for (TransportMode mode : TransportMode.values()) {
+            assertStopLatency(mode, 0.1, 200);
+        }
+    }
+
+    @Test
+    public void trimInFlightIsAppliedOnce() {
+        for (TransportMode mode : TransportMode.values()) {
+            SimulatedLink simulatedLink = new SimulatedLink(1);
+            int trims = runStops(simulatedLink, mode, 0);
+            // The trims are relative steps: one written again after a stop would be applied twice
+            assertEquals(mode.toString(), trims, simulatedLink.mBoat.getTrim());
+        }
+    }
+
+    private static void assertStopLatency(TransportMode mode, double lossRate, long maxP99Ms) {
+        SimulatedLink simulatedLink = new SimulatedLink(1);
+        int[] stopsNotApplied = new int[1];
+        runStops(simulatedLink, mode, lossRate, stopsNotApplied);
+
+        LatencyHistogram stop = simulatedLink.mMetrics.getStop();
+        assertEquals(mode + " with a loss rate of " + lossRate, 0, stopsNotApplied[0]);
+        assertEquals(STOPS, stop.getCount());
+        assertTrue(mode + " with a loss rate of " + lossRate + ": p99 " + stop.getPercentileMicros(99) + " us",
+                stop.getPercentileMicros(99) <= maxP99Ms * 1000);
+    }
+
+    private static int runStops(SimulatedLink simulatedLink, TransportMode mode, double lossRate) {
+        return runStops(simulatedLink, mode, lossRate, new int[1]);
+    }
+
+    /**
+     * Sends the stops, the control frames and the trims.
+     *
+     * @param stopsNotApplied incremented for each stop the boat did not apply within a second.
+     * @return the trims sent.
+     */
+    private static int runStops(SimulatedLink simulatedLink, TransportMode mode, double lossRate, int[] stopsNotApplied) {
+        simulatedLink.mBoat.setBytesPerSecond(BYTES_PER_SECOND);
+        simulatedLink.mBoat.setLossRate(lossRate);
+        CommandPipeline commandPipeline = simulatedLink.connect(mode);
+        InputArbiter inputArbiter = new InputArbiter(simulatedLink.mClock);
+        ControlChannel controlChannel = new ControlChannel("SIM-1", inputArbiter, simulatedLink.mClock,
+                simulatedLink.mMetrics, 50, 500);
+        controlChannel.setTargeted(true, simulatedLink.mClock.nanoTime());
+        controlChannel.attach(commandPipeline, 0);
+
+        long startMs = simulatedLink.nowMillis();
+        int[] trims = new int[1];
+        simulatedLink.run(STOPS * STOP_PERIOD_MS, () -> controlChannel.tick(false), () -> {
+            long elapsedMs = simulatedLink.nowMillis() - startMs;
+            long now = simulatedLink.mClock.nanoTime();
+            long sinceStopMs = (elapsedMs + STOP_PERIOD_MS / 2) % STOP_PERIOD_MS;
+            if (sinceStopMs == 0) {
+                // As the control loop does: the throttle is zeroed first, then the stop is sent
+                inputArbiter.setThrottle(ControlSnapshot.Source.SYSTEM, 0);
+                controlChannel.emergencyStop(now);
+            } else if (sinceStopMs == 1000 && simulatedLink.mBoat.getThrottle() != 0) {
+                stopsNotApplied[0]++;
+            } else if (sinceStopMs > 1000 && elapsedMs % 10 == 0) {
+                // The sticks keep moving, so a control frame is always pending
+                inputArbiter.set(ControlSnapshot.Source.TOUCH, 50 + (int) (elapsedMs / 10 % 50), (int) (elapsedMs / 10 % 30));
+                controlChannel.onInput(now);
+            }
+            if (elapsedMs % TRIM_PERIOD_MS == 0) {
+                controlChannel.sendTrim(CommandEncoder.Trim.RIGHT);
+                trims[0]++;
+            }
+        });
+        return trims[0];
+    }
+}
@@ -0,0 +1,94 @@
+package fr.dechriste.iot.airboatcontroller.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import fr.dechriste.iot.airboatcontroller.control.AxisMapper;
+
+/**
+ * Mapping of a gamepad sample to the servo and throttle values, as done for every motion
+ * event: the first axis out of its flat region wins, among the stick, the hat and the
+ * right stick.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AxisMapperBenchmark {
+    private static final int SAMPLES = 1024;
+    private static final int AXES = 6;
+
+    private final float[] mFlats = {0.05f, 0f, 0.05f, 0.05f, 0f, AxisMapper.MISSING_AXIS};
+    private float[][] mSamples;
+    private int mIndex;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        mSamples = new float[SAMPLES][AXES];
+        for (float[] sample : mSamples) {
+            for (int axis = 0; axis < AXES; axis++) {
+                // Mostly sticks at rest, as while cruising
+                sample[axis] = random.nextInt(4) == 0 ? random.nextFloat() * 2 - 1 : random.nextFloat() * 0.1f - 0.05f;
+            }
+        }
+    }
+
+    private float[] nextSample() {
+        mIndex = (mIndex + 1) & (SAMPLES - 1);
+        return mSamples[mIndex];
+    }
+
+    @Benchmark
+    public int mapSample() {
+        float[] sample = nextSample();
+        int servo = AxisMapper.toControlValue(AxisMapper.firstCentered(sample, mFlats, 0, 3));
+        int throttle = -AxisMapper.toControlValue(AxisMapper.firstCentered(sample, mFlats, 3, 3));
+        return servo ^ throttle;
+    }
+
+    /** The per-axis lookups of the former getCenteredAxis code, with the flat read every time. */
+    @Benchmark
+    public int getCenteredAxis() {
+        float[] sample = nextSample();
+        float x = centeredAxis(sample, 0);
+        if (x == 0) {
+            x = centeredAxis(sample, 1);
+        }
+        if (x == 0) {
+            x = centeredAxis(sample, 2);
+        }
+        float y = centeredAxis(sample, 3);
+        if (y == 0) {
+            y = centeredAxis(sample, 4);
+        }
+        if (y == 0) {
+            y = centeredAxis(sample, 5);
+        }
+        return Math.round(x * 100) ^ -Math.round(y * 100);
+    }
+
+    private float centeredAxis(float[] sample, int axis) {
+        Float flat = lookUpFlat(axis);
+        if (flat != null) {
+            float value = sample[axis];
+            if (Math.abs(value) > flat) {
+                return value;
+            }
+        }
+        return 0;
+    }
+
+    // Stands for InputDevice.getMotionRange(), which returned a nullable object per call
+    private Float lookUpFlat(int axis) {
+        float flat = mFlats[axis];
+        return Float.isNaN(flat) ? null : Float.valueOf(flat);
+    }
+}
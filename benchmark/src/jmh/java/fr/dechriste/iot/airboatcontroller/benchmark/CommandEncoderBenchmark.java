@@ -0,0 +1,65 @@
+package fr.dechriste.iot.airboatcontroller.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import fr.dechriste.iot.airboatcontroller.control.Clock;
+import fr.dechriste.iot.airboatcontroller.control.CommandCompressor;
+import fr.dechriste.iot.airboatcontroller.control.CommandEncoder;
+
+/**
+ * Control frame encoding, against the {@code String.format} path it replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CommandEncoderBenchmark {
+    private final CommandEncoder mTextEncoder = new CommandEncoder(CommandEncoder.Format.TEXT);
+    private final CommandEncoder mBinaryEncoder = new CommandEncoder(CommandEncoder.Format.BINARY);
+    private final CommandEncoder mCompressedEncoder = new CommandEncoder(CommandEncoder.Format.COMPRESSED);
+    private final CommandCompressor mCompressor = new CommandCompressor(Clock.SYSTEM);
+    private int mValue;
+
+    private int nextValue() {
+        mValue = mValue == CommandEncoder.MAX_VALUE ? CommandEncoder.MIN_VALUE : mValue + 1;
+        return mValue;
+    }
+
+    @Benchmark
+    public byte[] stringFormat() {
+        int value = nextValue();
+        return String.format(Locale.ENGLISH, "AT$PARAMS:%d;%d", value, -value).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Benchmark
+    public byte[] encodeText() {
+        int value = nextValue();
+        return mTextEncoder.encodeParams(value, -value);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        int value = nextValue();
+        return mBinaryEncoder.encodeParams(value, -value);
+    }
+
+    /** The throttle moves while the servo holds, so mostly single field frames. */
+    @Benchmark
+    public byte[] encodeCompressed() {
+        int throttle = mCompressor.quantize(nextValue());
+        return mCompressor.encode(mCompressedEncoder, throttle, 0, false);
+    }
+
+    @Benchmark
+    public byte[] encodeTrim() {
+        return mTextEncoder.encodeTrim(CommandEncoder.Trim.RIGHT);
+    }
+}
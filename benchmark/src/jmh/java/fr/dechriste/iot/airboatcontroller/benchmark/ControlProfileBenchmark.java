@@ -0,0 +1,71 @@
+package fr.dechriste.iot.airboatcontroller.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import fr.dechriste.iot.airboatcontroller.control.ControlProfile;
+
+/**
+ * Mapping of a stick sample through a control profile: the precomputed tables, against the
+ * deadzone and expo curve computed on every input.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ControlProfileBenchmark {
+    private static final int SAMPLES = 1024;
+
+    @Param({"BEGINNER"})
+    public ControlProfile profile;
+
+    private int[] mSamples;
+    private int mIndex;
+    // The parameters of the profile, as its tables were built from
+    private int mDeadzone;
+    private int mExpoPercent;
+    private int mMaxForward;
+    private int mMaxReverse;
+    private int mMaxServo;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        mSamples = new int[SAMPLES * 2];
+        for (int i = 0; i < mSamples.length; i++) {
+            mSamples[i] = random.nextInt(201) - 100;
+        }
+        mDeadzone = profile.getDeadzone();
+        mExpoPercent = profile.getExpoPercent();
+        mMaxForward = profile.getMaxForward();
+        mMaxReverse = profile.getMaxReverse();
+        mMaxServo = profile.getMaxServo();
+    }
+
+    private int nextIndex() {
+        mIndex = (mIndex + 2) & (SAMPLES * 2 - 1);
+        return mIndex;
+    }
+
+    @Benchmark
+    public int lookUp() {
+        int index = nextIndex();
+        return profile.mapThrottle(mSamples[index]) ^ profile.mapServo(mSamples[index + 1]);
+    }
+
+    @Benchmark
+    public int compute() {
+        int index = nextIndex();
+        int throttle = mSamples[index];
+        return ControlProfile.curve(throttle, mDeadzone, mExpoPercent, throttle >= 0 ? mMaxForward : mMaxReverse)
+                ^ ControlProfile.curve(mSamples[index + 1], mDeadzone, mExpoPercent, mMaxServo);
+    }
+}
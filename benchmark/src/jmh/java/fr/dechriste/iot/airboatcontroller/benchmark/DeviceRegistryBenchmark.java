@@ -0,0 +1,59 @@
+package fr.dechriste.iot.airboatcontroller.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import fr.dechriste.iot.airboatcontroller.scan.DeviceRegistry;
+import fr.dechriste.iot.airboatcontroller.scan.ScannedDevice;
+
+/**
+ * The scan registry with a crowd of advertising devices: one advertisement per operation,
+ * and the snapshot published every 250 ms to the list.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DeviceRegistryBenchmark {
+    @Param({"10", "100", "500"})
+    public int devices;
+
+    private long mNow;
+    private DeviceRegistry mRegistry;
+    private String[] mAddresses;
+    private int mIndex;
+
+    @Setup
+    public void setUp() {
+        mRegistry = new DeviceRegistry(() -> mNow, DeviceRegistry.DEFAULT_EXPIRY_MS);
+        mAddresses = new String[devices];
+        for (int i = 0; i < devices; i++) {
+            mAddresses[i] = String.format("00:15:83:00:%02X:%02X", i >> 8, i & 0xFF);
+            mRegistry.onAdvertisement(mAddresses[i], "AIRBOAT", -60 - i % 30);
+        }
+    }
+
+    @Benchmark
+    public boolean onAdvertisement() {
+        mIndex = mIndex + 1 == devices ? 0 : mIndex + 1;
+        mNow += TimeUnit.MILLISECONDS.toNanos(1);
+        mRegistry.onAdvertisement(mAddresses[mIndex], "AIRBOAT", -50 - (int) (mNow >> 20) % 40);
+        return mRegistry.hasChanged();
+    }
+
+    @Benchmark
+    public List<ScannedDevice> publish() {
+        mIndex = mIndex + 1 == devices ? 0 : mIndex + 1;
+        mRegistry.onAdvertisement(mAddresses[mIndex], "AIRBOAT", -50 - mIndex % 40);
+        mRegistry.expire();
+        return mRegistry.snapshot();
+    }
+}
@@ -0,0 +1,76 @@
+package fr.dechriste.iot.airboatcontroller.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import fr.dechriste.iot.airboatcontroller.control.CommandPipeline;
+import fr.dechriste.iot.airboatcontroller.control.ControlChannel;
+import fr.dechriste.iot.airboatcontroller.control.ControlMetrics;
+import fr.dechriste.iot.airboatcontroller.control.ControlSnapshot;
+import fr.dechriste.iot.airboatcontroller.control.InputArbiter;
+import fr.dechriste.iot.airboatcontroller.control.TransportMode;
+import io.reactivex.Single;
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * One control loop tick for a fleet: new input values, scheduling, encoding and submission
+ * to the pipelines, against a fake transport completing the writes right away, or never
+ * for a stalled link where the frames are coalesced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SendLoopBenchmark {
+    private static final long MIN_INTERVAL_MS = 50;
+    private static final long HEARTBEAT_MS = 500;
+    // With the MTU negotiated in fast mode
+    private static final int MAX_PACKET_LENGTH = 182;
+
+    @Param({"1", "7"})
+    public int boats;
+
+    @Param({"instant", "stalled"})
+    public String link;
+
+    private long mNow;
+    private InputArbiter mInputArbiter;
+    private ControlChannel[] mChannels;
+    private int mValue;
+
+    @Setup
+    public void setUp() {
+        boolean stalled = "stalled".equals(link);
+        CommandPipeline.FrameWriter writer = (frame, acknowledged) -> stalled ? Single.never() : Single.just(frame);
+        ControlMetrics metrics = new ControlMetrics();
+        mInputArbiter = new InputArbiter(() -> mNow);
+        mChannels = new ControlChannel[boats];
+        for (int i = 0; i < boats; i++) {
+            mChannels[i] = new ControlChannel("boat" + i, mInputArbiter, () -> mNow, metrics, MIN_INTERVAL_MS, HEARTBEAT_MS);
+            mChannels[i].attach(new CommandPipeline(writer, TransportMode.FAST, MAX_PACKET_LENGTH,
+                    Schedulers.trampoline(), () -> mNow, metrics), 0);
+            mChannels[i].setTargeted(true, mNow);
+        }
+    }
+
+    @Benchmark
+    public long tick() {
+        // Every tick is due: the values changed and the minimum interval elapsed
+        mNow += TimeUnit.MILLISECONDS.toNanos(MIN_INTERVAL_MS);
+        mValue = mValue == 100 ? -100 : mValue + 1;
+        mInputArbiter.setThrottle(ControlSnapshot.Source.TOUCH, mValue);
+        long delayNanos = Long.MAX_VALUE;
+        for (ControlChannel channel : mChannels) {
+            channel.onInput(mNow);
+            delayNanos = Math.min(delayNanos, channel.tick(false));
+        }
+        return delayNanos;
+    }
+}
@@ -0,0 +1,58 @@
+package fr.dechriste.iot.airboatcontroller.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import fr.dechriste.iot.airboatcontroller.control.Clock;
+import fr.dechriste.iot.airboatcontroller.control.CommandEncoder;
+import fr.dechriste.iot.airboatcontroller.recording.SessionRecorder;
+
+/**
+ * Cost of recording one control frame from the control thread. A full log is replaced by a
+ * new one, its flush amortized over the {@link #CAPACITY} worth of records.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SessionRecorderBenchmark {
+    private static final int CAPACITY = 64 * 1024 * 1024;
+
+    private final byte[] mFrame = new CommandEncoder().encodeParams(-100, 100);
+    private File mFile;
+    private SessionRecorder mRecorder;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("session", ".bin");
+        mRecorder = new SessionRecorder(mFile, Clock.SYSTEM, CAPACITY);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        mRecorder.close();
+        if (!mFile.delete()) {
+            mFile.deleteOnExit();
+        }
+    }
+
+    @Benchmark
+    public boolean recordOutbound() throws IOException {
+        if (mRecorder.record(SessionRecorder.DIRECTION_OUTBOUND, 0, mFrame, 0, mFrame.length)) {
+            return true;
+        }
+        tearDown();
+        setUp();
+        return false;
+    }
+}
@@ -0,0 +1,56 @@
+package fr.dechriste.iot.airboatcontroller.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import fr.dechriste.iot.airboatcontroller.control.Clock;
+import fr.dechriste.iot.airboatcontroller.telemetry.TelemetryParser;
+
+/**
+ * Parsing of 20-byte notification packets, messages split across them. One operation is
+ * one packet: a BLE link notifies at most a few hundred packets per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TelemetryParserBenchmark {
+    private static final int PACKET_LENGTH = 20;
+    private static final int PACKETS = 256;
+
+    private byte[][] mPackets;
+    private TelemetryParser mParser;
+    private int mIndex;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; stream.size() < PACKETS * PACKET_LENGTH; i++) {
+            String line = i % 3 == 0 ? "AT$BATT:" + (3600 + i % 500) + "\n" : i % 3 == 1 ? "OK\n" : "AT$TRIM:" + (i % 20 - 10) + "\n";
+            byte[] bytes = line.getBytes(StandardCharsets.US_ASCII);
+            stream.write(bytes, 0, bytes.length);
+        }
+        byte[] bytes = stream.toByteArray();
+        mPackets = new byte[PACKETS][PACKET_LENGTH];
+        for (int i = 0; i < PACKETS; i++) {
+            System.arraycopy(bytes, i * PACKET_LENGTH, mPackets[i], 0, PACKET_LENGTH);
+        }
+        mParser = new TelemetryParser(Clock.SYSTEM, blackhole::consume);
+    }
+
+    @Benchmark
+    public void feedPacket() {
+        mIndex = (mIndex + 1) & (PACKETS - 1);
+        // Wrapping around may cut a line, counted as malformed like on a real link
+        mParser.feed(mPackets[mIndex]);
+    }
+}